@@ -0,0 +1,86 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import asl.tcpproxy.tunnels.TunnelSettings;
+
+/**
+ * Connection setup through the proxy: connect, send a byte, wait for its echo
+ * and close. Sampled, so the result shows the latency percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConnectBenchmark {
+
+    /** Size of the prewarmed backend pool, 0 connects for every client */
+    @Param({ "0", "8" })
+    int backendPoolMin;
+
+    ProxyFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        TunnelSettings settings = new TunnelSettings();
+        settings.setBackendPoolMin(backendPoolMin);
+        settings.setBackendPoolMax(backendPoolMin * 2);
+
+        fixture = new ProxyFixture(true, settings);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Benchmark
+    public int connect() throws IOException {
+        try (Socket socket = fixture.connect()) {
+            // reset instead of TIME_WAIT, so the loopback ports do not run out
+            socket.setSoLinger(true, 0);
+
+            socket.getOutputStream().write(1);
+            InputStream in = socket.getInputStream();
+            return in.read();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import asl.tcpproxy.tunnels.Tunnel;
+import asl.tcpproxy.tunnels.TunnelSettings;
+
+/**
+ * An {@link EchoServer} behind a real {@link Tunnel} listening on a free
+ * loopback port.
+ */
+public class ProxyFixture implements Closeable {
+
+    private final EchoServer echoServer;
+
+    private final Tunnel tunnel;
+
+    private final int proxyPort;
+
+    public ProxyFixture(boolean copyFreeForwarding, TunnelSettings settings) throws IOException {
+        echoServer = new EchoServer();
+        proxyPort = freePort();
+
+        tunnel = new Tunnel(String.format("%d:127.0.0.1:%d", proxyPort, echoServer.getPort()),
+                10000,
+                null,
+                copyFreeForwarding);
+        tunnel.setSettings(settings);
+        tunnel.open();
+
+        if (!tunnel.isActive()) {
+            echoServer.close();
+            throw new IllegalStateException(tunnel.toString());
+        }
+    }
+
+    public ProxyFixture(boolean copyFreeForwarding) throws IOException {
+        this(copyFreeForwarding, new TunnelSettings());
+    }
+
+    /**
+     * A new client connection through the tunnel.
+     */
+    public Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), proxyPort);
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    @Override
+    public void close() throws IOException {
+        tunnel.close();
+        echoServer.close();
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.benchmarks;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import asl.tcpproxy.tunnels.TunnelEngine;
+import asl.tcpproxy.tunnels.TunnelSettings;
+
+/**
+ * Request/response traffic through the proxy: every operation sends a packet
+ * and waits for its echo. The score is requests per second, the
+ * {@code gc.alloc.rate.norm} of the gc profiler divided by
+ * {@code 2 * payloadSize} is the allocation per forwarded byte.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(4)
+public class RpcBenchmark {
+
+    @Param({ "true", "false" })
+    boolean copyFreeForwarding;
+
+    @Param({ "MINA", "VIRTUAL_THREADS" })
+    TunnelEngine.Type engine;
+
+    @Param({ "64", "1024" })
+    int payloadSize;
+
+    ProxyFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        TunnelSettings settings = new TunnelSettings();
+        settings.setEngine(engine);
+        fixture = new ProxyFixture(copyFreeForwarding, settings);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        Socket socket;
+
+        OutputStream out;
+
+        DataInputStream in;
+
+        byte[] request;
+
+        byte[] response;
+
+        @Setup(Level.Trial)
+        public void connect(RpcBenchmark benchmark) throws IOException {
+            socket = benchmark.fixture.connect();
+            out = socket.getOutputStream();
+            in = new DataInputStream(socket.getInputStream());
+            request = new byte[benchmark.payloadSize];
+            response = new byte[benchmark.payloadSize];
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Traffic {
+
+        /** Both directions, reported per second */
+        public long forwardedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            forwardedBytes = 0;
+        }
+    }
+
+    @Benchmark
+    public byte[] roundTrip(Client client, Traffic traffic) throws IOException {
+        client.out.write(client.request);
+        client.in.readFully(client.response);
+        traffic.forwardedBytes += 2L * client.request.length;
+        return client.response;
+    }
+}
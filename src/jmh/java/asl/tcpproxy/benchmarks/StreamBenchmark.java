@@ -0,0 +1,141 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import asl.tcpproxy.tunnels.TunnelEngine;
+import asl.tcpproxy.tunnels.TunnelSettings;
+
+/**
+ * Bulk transfer through the proxy. The benchmark thread keeps writing chunks
+ * while a background thread drains the echo, so the proxy moves data in both
+ * directions at once. {@code forwardedBytes} per second is the throughput.
+ * 
+ * The SPLICE engine runs on Linux only, elsewhere the tunnel falls back to MINA
+ * and the results of both engines are the same.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StreamBenchmark {
+
+    @Param({ "true", "false" })
+    boolean copyFreeForwarding;
+
+    @Param({ "65536" })
+    int chunkSize;
+
+    @Param({ "MINA", "SPLICE", "VIRTUAL_THREADS" })
+    TunnelEngine.Type engine;
+
+    ProxyFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        TunnelSettings settings = new TunnelSettings();
+        settings.setEngine(engine);
+        fixture = new ProxyFixture(copyFreeForwarding, settings);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+
+        Socket socket;
+
+        OutputStream out;
+
+        byte[] chunk;
+
+        @Setup(Level.Trial)
+        public void connect(StreamBenchmark benchmark) throws IOException {
+            socket = benchmark.fixture.connect();
+            out = socket.getOutputStream();
+            chunk = new byte[benchmark.chunkSize];
+
+            InputStream in = socket.getInputStream();
+            Thread drain = new Thread(() -> drain(in), "drain");
+            drain.setDaemon(true);
+            drain.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws IOException {
+            socket.close();
+        }
+
+        private static void drain(InputStream in) {
+            byte[] buffer = new byte[64 * 1024];
+            try {
+                while (in.read(buffer) >= 0) {
+                    // discard
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Traffic {
+
+        /** Client to backend only, the echo doubles the load on the proxy */
+        public long forwardedBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            forwardedBytes = 0;
+        }
+    }
+
+    @Benchmark
+    public void write(Client client, Traffic traffic) throws IOException {
+        client.out.write(client.chunk);
+        traffic.forwardedBytes += client.chunk.length;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.filters;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.session.DummySession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link WhitelistFilter#isBlocked} for white lists of different sizes.
+ * The client address is in the list, so nothing is logged.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WhitelistFilterBenchmark {
+
+    @Param({ "1", "100", "10000" })
+    int subnets;
+
+    @Param({ "ipv4", "ipv6" })
+    String family;
+
+    WhitelistFilter filter;
+
+    DummySession session;
+
+    @Setup
+    public void setUp() throws UnknownHostException {
+        boolean ipv6 = "ipv6".equals(family);
+        Random random = new Random(42);
+
+        List<Cidr> whiteList = new ArrayList<>();
+        for (int i = 1; i < subnets; i++) {
+            byte[] address = new byte[ipv6 ? 16 : 4];
+            random.nextBytes(address);
+            int prefixLength = ipv6 ? 32 + random.nextInt(97) : 8 + random.nextInt(25);
+            whiteList.add(new Cidr(InetAddress.getByAddress(address), prefixLength));
+        }
+        whiteList.add(ipv6 ? Cidr.parse("2001:db8:1:2::/64") : Cidr.parse("10.1.2.0/24"));
+
+        filter = new WhitelistFilter();
+        filter.setSubnetBlacklist(whiteList);
+
+        InetAddress clientAddress = InetAddress.getByName(ipv6 ? "2001:db8:1:2::3" : "10.1.2.3");
+        session = new DummySession();
+        session.setRemoteAddress(new InetSocketAddress(clientAddress, 40000));
+    }
+
+    @Benchmark
+    public boolean isBlocked() {
+        return filter.isBlocked(session);
+    }
+}
@@ -19,21 +19,32 @@
  */
 package asl.tcpproxy;
 
-import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
+import javax.annotation.PostConstruct;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
 import org.springframework.boot.info.BuildProperties;
+import org.springframework.context.EnvironmentAware;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+
+import asl.tcpproxy.buffers.BufferPoolSettings;
+import asl.tcpproxy.filters.Cidr;
+import asl.tcpproxy.tunnels.TunnelSettings;
 
 @Configuration
 @EnableConfigurationProperties
 @ConfigurationProperties
-public class AppConfig {
+public class AppConfig implements EnvironmentAware {
 
     List<String> clientWhiteList = new ArrayList<String>();
 
@@ -41,32 +52,86 @@ public class AppConfig {
 
     int connectTimeout;
 
+    boolean copyFreeForwarding = true;
+
+    int ioProcessors;
+
+    int startupThreads = 4;
+
+    int bindRetries = 10;
+
+    long bindRetryDelay = 1000;
+
+    long bindRetryMaxDelay = 30000;
+
+    String accessLogFile = "";
+
+    int accessLogBufferSize = 65536;
+
+    long accessLogMaxFileSize = 100 * 1024 * 1024;
+
+    int accessLogMaxFiles = 5;
+
+    BufferPoolSettings bufferPool = new BufferPoolSettings();
+
+    String configFile = "";
+
+    long configReloadInterval = 5000;
+
+    TunnelSettings tunnelDefaults = new TunnelSettings();
+
+    Map<Integer, TunnelSettings> tunnelSettings = new HashMap<>();
+
     Optional<BuildProperties> buildProperties;
 
+    /** Set on the Spring bean only, not on a reloaded configuration */
+    Environment environment;
+
     public AppConfig(Optional<BuildProperties> buildProperties) {
         this.buildProperties = buildProperties;
     }
 
-    public InetAddress[] getClientWhiteListAddresses() {
+    @Override
+    public void setEnvironment(Environment environment) {
+        this.environment = environment;
+    }
+
+    /**
+     * Runs after the properties were bound.
+     */
+    @PostConstruct
+    private void init() {
+        if (environment != null) {
+            mergeTunnelSettings(Binder.get(environment));
+        }
+    }
+
+    /**
+     * Parses the client white list entries, either plain addresses or subnets
+     * like {@code 10.0.0.0/8}.
+     * 
+     * @return the subnets or {@code null} if every client is allowed
+     */
+    public Cidr[] getClientWhiteListSubnets() {
         try {
 
-            List<InetAddress> addressList = new ArrayList<>();
+            List<Cidr> subnetList = new ArrayList<>();
             for (String addressString : getClientWhiteList()) {
                 if ("*".equals(addressString.trim())) {
                     return null;
                 } else {
 
-                    addressList.add(InetAddress.getByName(addressString));
+                    subnetList.add(Cidr.parse(addressString));
 
                 }
             }
-            if (addressList.size() > 0) {
-                return addressList.toArray(new InetAddress[addressList.size()]);
+            if (subnetList.size() > 0) {
+                return subnetList.toArray(new Cidr[subnetList.size()]);
             } else {
                 return null;
             }
 
-        } catch (UnknownHostException e) {
+        } catch (UnknownHostException | IllegalArgumentException e) {
             throw new IllegalStateException(
                     String.format("Unable to proceed. Wrong white list address: %s", e.toString()),
                     e);
@@ -97,6 +162,195 @@ public class AppConfig {
         this.connectTimeout = connectTimeout;
     }
 
+    public boolean isCopyFreeForwarding() {
+        return copyFreeForwarding;
+    }
+
+    public void setCopyFreeForwarding(boolean copyFreeForwarding) {
+        this.copyFreeForwarding = copyFreeForwarding;
+    }
+
+    public int getIoProcessors() {
+        return ioProcessors;
+    }
+
+    public void setIoProcessors(int ioProcessors) {
+        this.ioProcessors = ioProcessors;
+    }
+
+    /**
+     * Size of the NIO processor pool shared by all the tunnels. Same as the MINA
+     * default (cores + 1) unless configured explicitly.
+     */
+    public int ioProcessorCount() {
+        return ioProcessors > 0 ? ioProcessors : Runtime.getRuntime().availableProcessors() + 1;
+    }
+
+    /**
+     * Tunnels opened at the same time.
+     */
+    public int getStartupThreads() {
+        return startupThreads;
+    }
+
+    public void setStartupThreads(int startupThreads) {
+        this.startupThreads = startupThreads;
+    }
+
+    /**
+     * Attempts to open a tunnel after the first one failed, e.g. because its
+     * port was still taken.
+     */
+    public int getBindRetries() {
+        return bindRetries;
+    }
+
+    public void setBindRetries(int bindRetries) {
+        this.bindRetries = bindRetries;
+    }
+
+    /**
+     * Milliseconds before the first retry, doubled for each next one.
+     */
+    public long getBindRetryDelay() {
+        return bindRetryDelay;
+    }
+
+    public void setBindRetryDelay(long bindRetryDelay) {
+        this.bindRetryDelay = bindRetryDelay;
+    }
+
+    public long getBindRetryMaxDelay() {
+        return bindRetryMaxDelay;
+    }
+
+    public void setBindRetryMaxDelay(long bindRetryMaxDelay) {
+        this.bindRetryMaxDelay = bindRetryMaxDelay;
+    }
+
+    /**
+     * File of the access log, empty disables it.
+     */
+    public String getAccessLogFile() {
+        return accessLogFile;
+    }
+
+    public void setAccessLogFile(String accessLogFile) {
+        this.accessLogFile = accessLogFile;
+    }
+
+    /**
+     * Records waiting for the writer, more are dropped.
+     */
+    public int getAccessLogBufferSize() {
+        return accessLogBufferSize;
+    }
+
+    public void setAccessLogBufferSize(int accessLogBufferSize) {
+        this.accessLogBufferSize = accessLogBufferSize;
+    }
+
+    /**
+     * Bytes after which the access log is rolled over.
+     */
+    public long getAccessLogMaxFileSize() {
+        return accessLogMaxFileSize;
+    }
+
+    public void setAccessLogMaxFileSize(long accessLogMaxFileSize) {
+        this.accessLogMaxFileSize = accessLogMaxFileSize;
+    }
+
+    /**
+     * Rolled over access log files kept.
+     */
+    public int getAccessLogMaxFiles() {
+        return accessLogMaxFiles;
+    }
+
+    public void setAccessLogMaxFiles(int accessLogMaxFiles) {
+        this.accessLogMaxFiles = accessLogMaxFiles;
+    }
+
+    public BufferPoolSettings getBufferPool() {
+        return bufferPool;
+    }
+
+    public void setBufferPool(BufferPoolSettings bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    public String getConfigFile() {
+        return configFile;
+    }
+
+    public void setConfigFile(String configFile) {
+        this.configFile = configFile;
+    }
+
+    public long getConfigReloadInterval() {
+        return configReloadInterval;
+    }
+
+    public void setConfigReloadInterval(long configReloadInterval) {
+        this.configReloadInterval = configReloadInterval;
+    }
+
+    /**
+     * Takes over the values which can be changed at runtime from the reloaded
+     * configuration. The processor pool size, the startup and the reload
+     * settings themselves need a restart.
+     */
+    public void update(AppConfig reloaded) {
+        this.clientWhiteList = reloaded.clientWhiteList;
+        this.tunnels = reloaded.tunnels;
+        this.connectTimeout = reloaded.connectTimeout;
+        this.copyFreeForwarding = reloaded.copyFreeForwarding;
+        this.tunnelDefaults = reloaded.tunnelDefaults;
+        this.tunnelSettings = reloaded.tunnelSettings;
+    }
+
+    public TunnelSettings getTunnelDefaults() {
+        return tunnelDefaults;
+    }
+
+    public void setTunnelDefaults(TunnelSettings tunnelDefaults) {
+        this.tunnelDefaults = tunnelDefaults;
+    }
+
+    public Map<Integer, TunnelSettings> getTunnelSettings() {
+        return tunnelSettings;
+    }
+
+    public void setTunnelSettings(Map<Integer, TunnelSettings> tunnelSettings) {
+        this.tunnelSettings = tunnelSettings;
+    }
+
+    /**
+     * Binds every per port entry over the tunnel defaults, so an entry only
+     * overrides the keys it sets. Spring binds the entries on their own,
+     * starting from the built-in values instead of the defaults.
+     */
+    public void mergeTunnelSettings(Binder binder) {
+        Map<Integer, TunnelSettings> merged = new HashMap<>();
+        for (Integer proxyPort : tunnelSettings.keySet()) {
+            TunnelSettings settings = new TunnelSettings();
+            binder.bind("tunnel-defaults", Bindable.ofInstance(settings));
+            binder.bind("tunnel-settings." + proxyPort, Bindable.ofInstance(settings));
+            merged.put(proxyPort, settings);
+        }
+        this.tunnelSettings = merged;
+    }
+
+    /**
+     * Settings of the tunnel listening on the given port. Falls back to the
+     * tunnel defaults if there is no dedicated entry for the port, an entry
+     * overrides the defaults key by key.
+     */
+    public TunnelSettings settingsFor(int proxyPort) {
+        return tunnelSettings.getOrDefault(proxyPort, tunnelDefaults);
+    }
+
     public String appVersion() {
         return buildProperties.map(v -> v.getVersion()).orElse("dev version");
     }
@@ -0,0 +1,212 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.accesslog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One line per client session, written in batches by a background thread to
+ * a file rolled over by size. The I/O threads only put the records into a
+ * ring, when it is full the records are dropped and counted instead of
+ * blocking them.
+ */
+public class AccessLog implements Closeable {
+
+    private static Logger log = LoggerFactory.getLogger(AccessLog.class);
+
+    private static final int BATCH_SIZE = 1024;
+
+    /** How long the writer sleeps when the ring is empty */
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Path file;
+
+    private final long maxFileSize;
+
+    private final int maxFiles;
+
+    private final RecordRing ring;
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final Thread writer;
+
+    private volatile boolean running = true;
+
+    private FileChannel channel;
+
+    private long fileSize;
+
+    /** Dropped records already reported in the file */
+    private long reportedDropped;
+
+    /**
+     * @param maxFileSize
+     *            bytes after which the file is rolled over
+     * @param maxFiles
+     *            rolled over files kept as {@code file.1} to
+     *            {@code file.<maxFiles>}, 0 truncates the file instead
+     */
+    public AccessLog(String file, int bufferSize, long maxFileSize, int maxFiles) {
+        this.file = Paths.get(file).toAbsolutePath();
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.ring = new RecordRing(bufferSize);
+        this.writer = new Thread(this::write, "access-log");
+        this.writer.setDaemon(true);
+    }
+
+    public void start() throws IOException {
+        Files.createDirectories(file.getParent());
+        open();
+        writer.start();
+    }
+
+    /**
+     * Never blocks, the record is dropped when the writer can't keep up.
+     */
+    public void log(AccessLogRecord record) {
+        if (!ring.offer(record)) {
+            dropped.increment();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes what is in the ring and closes the file.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write() {
+        List<AccessLogRecord> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder lines = new StringBuilder();
+        boolean more = true;
+        while (running || more) {
+            ring.drainTo(batch, BATCH_SIZE);
+            more = !batch.isEmpty();
+            if (!more) {
+                LockSupport.parkNanos(IDLE_WAIT);
+                continue;
+            }
+
+            reportDropped(lines);
+            for (AccessLogRecord record : batch) {
+                record.appendTo(lines);
+            }
+            batch.clear();
+            try {
+                write(lines);
+            } catch (IOException e) {
+                log.error("Unable to write the access log {}", file, e);
+            }
+            lines.setLength(0);
+        }
+        closeChannel();
+    }
+
+    private void reportDropped(StringBuilder lines) {
+        long total = dropped.sum();
+        if (total != reportedDropped) {
+            lines.append(Instant.now()).append(" dropped ").append(total - reportedDropped).append(" records\n");
+            reportedDropped = total;
+        }
+    }
+
+    private void write(StringBuilder lines) throws IOException {
+        if (fileSize >= maxFileSize) {
+            rollOver();
+        }
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(lines.toString());
+        fileSize += bytes.remaining();
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private void rollOver() throws IOException {
+        closeChannel();
+        try {
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path older = rolled(i);
+                if (Files.exists(older)) {
+                    Files.move(older, rolled(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            if (maxFiles > 0) {
+                Files.move(file, rolled(1), StandardCopyOption.REPLACE_EXISTING);
+            } else {
+                Files.delete(file);
+            }
+        } finally {
+            // appends to the old file when the move failed
+            open();
+        }
+    }
+
+    private Path rolled(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        fileSize = channel.size();
+    }
+
+    private void closeChannel() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to close the access log {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.accesslog;
+
+import java.net.SocketAddress;
+import java.time.Instant;
+
+/**
+ * What is known about a client session once it is closed. Only references
+ * are taken on the I/O thread, the line is formatted by the writer.
+ */
+public final class AccessLogRecord {
+
+    /** Bytes of a direction the engine does not see, e.g. spliced ones */
+    public static final long UNKNOWN = -1;
+
+    private final long startMillis;
+
+    private final int proxyPort;
+
+    private final SocketAddress client;
+
+    /** The backend or null if none was connected */
+    private final Object backend;
+
+    private final long bytesIn;
+
+    private final long bytesOut;
+
+    private final long durationMillis;
+
+    private final String closeReason;
+
+    /**
+     * @param bytesIn
+     *            bytes read from the client
+     * @param bytesOut
+     *            bytes written to the client
+     */
+    public AccessLogRecord(long startMillis,
+            int proxyPort,
+            SocketAddress client,
+            Object backend,
+            long bytesIn,
+            long bytesOut,
+            long durationMillis,
+            String closeReason) {
+        this.startMillis = startMillis;
+        this.proxyPort = proxyPort;
+        this.client = client;
+        this.backend = backend;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.durationMillis = durationMillis;
+        this.closeReason = closeReason;
+    }
+
+    /**
+     * {@code start port client backend bytesIn bytesOut durationMs "reason"},
+     * unknown values are written as {@code -}.
+     */
+    void appendTo(StringBuilder line) {
+        line.append(Instant.ofEpochMilli(startMillis)).append(' ')
+                .append(proxyPort).append(' ')
+                .append(client != null ? client : "-").append(' ')
+                .append(backend != null ? backend : "-").append(' ');
+        appendBytes(line, bytesIn).append(' ');
+        appendBytes(line, bytesOut).append(' ')
+                .append(durationMillis).append(" \"")
+                .append(closeReason).append("\"\n");
+    }
+
+    private static StringBuilder appendBytes(StringBuilder line, long bytes) {
+        return bytes == UNKNOWN ? line.append('-') : line.append(bytes);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.accesslog;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded ring of records with many producers and the single writer thread as
+ * the consumer. Producers claim a slot with a CAS and never wait, a full ring
+ * rejects the record.
+ */
+class RecordRing {
+
+    private final AtomicReferenceArray<AccessLogRecord> slots;
+
+    private final int mask;
+
+    /** Next slot to claim by a producer */
+    private final AtomicLong tail = new AtomicLong();
+
+    /** Next slot to take by the consumer, written by it only */
+    private volatile long head;
+
+    /**
+     * @param capacity
+     *            rounded up to a power of two
+     */
+    RecordRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    boolean offer(AccessLogRecord record) {
+        while (true) {
+            long claim = tail.get();
+            if (claim - head > mask) {
+                return false;
+            }
+            if (tail.compareAndSet(claim, claim + 1)) {
+                slots.lazySet((int) claim & mask, record);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Moves up to max records in order to the batch. Stops early at a slot
+     * claimed but not yet filled by its producer.
+     */
+    int drainTo(List<AccessLogRecord> batch, int max) {
+        long next = head;
+        int count = 0;
+        while (count < max) {
+            int index = (int) next & mask;
+            AccessLogRecord record = slots.get(index);
+            if (record == null) {
+                break;
+            }
+            slots.lazySet(index, null);
+            batch.add(record);
+            next++;
+            count++;
+        }
+        head = next;
+        return count;
+    }
+}
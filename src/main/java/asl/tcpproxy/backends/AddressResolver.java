@@ -0,0 +1,108 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.backends;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the cached addresses of the backends of a tunnel fresh. Every backend
+ * is resolved again once its addresses are older than the TTL, the blocking
+ * lookups run on the resolver executor so neither the scheduler nor the I/O
+ * threads ever wait for the DNS. A backend failing to resolve keeps its last
+ * addresses and is tried again sooner.
+ */
+public class AddressResolver {
+
+    /** Retry delay of a failed lookup unless the TTL is shorter */
+    private static final long RETRY_DELAY = 1000;
+
+    private final Backend[] backends;
+
+    private final Map<Backend, ScheduledFuture<?>> refreshes = new ConcurrentHashMap<>();
+
+    private Executor resolverExecutor;
+
+    private ScheduledExecutorService scheduler;
+
+    private long ttl;
+
+    private volatile boolean closed;
+
+    public AddressResolver(Backend[] backends) {
+        this.backends = backends;
+    }
+
+    /**
+     * Resolves all the backends on the calling thread, e.g. before the tunnel
+     * accepts the first client.
+     */
+    public void resolveAll() {
+        for (Backend backend : backends) {
+            backend.resolve();
+        }
+    }
+
+    /**
+     * Starts the background refresh of the backends resolved by
+     * {@link #resolveAll()}.
+     */
+    public void start(ScheduledExecutorService scheduler, Executor resolverExecutor, long ttl) {
+        this.scheduler = scheduler;
+        this.resolverExecutor = resolverExecutor;
+        this.ttl = ttl;
+        for (Backend backend : backends) {
+            schedule(backend, backend.isResolved() ? ttl : Math.min(ttl, RETRY_DELAY));
+        }
+    }
+
+    public void close() {
+        closed = true;
+        refreshes.values().forEach(refresh -> refresh.cancel(false));
+        refreshes.clear();
+    }
+
+    private void schedule(Backend backend, long delay) {
+        if (closed) {
+            return;
+        }
+        try {
+            refreshes.put(backend, scheduler.schedule(() -> refresh(backend), delay, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+
+    private void refresh(Backend backend) {
+        try {
+            resolverExecutor.execute(() -> {
+                boolean resolved = backend.resolve();
+                schedule(backend, resolved ? ttl : Math.min(ttl, RETRY_DELAY));
+            });
+        } catch (RejectedExecutionException e) {
+            // shutting down
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.backends;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * One of the target endpoints of a tunnel together with its load and health.
+ */
+public class Backend {
+
+    private static final String SESSION_ATTRIBUTE = Backend.class.getName() + ".Backend";
+
+    private static Logger log = LoggerFactory.getLogger(Backend.class);
+
+    private final String host;
+
+    private final int port;
+
+    /** Unresolved address handed out until the first lookup succeeds */
+    private final InetSocketAddress unresolved;
+
+    /** All the A and AAAA records of the host from the last lookup */
+    private volatile InetSocketAddress[] addresses = new InetSocketAddress[0];
+
+    /** Rotates the connects over the records */
+    private final AtomicInteger nextAddress = new AtomicInteger();
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private volatile boolean healthy = true;
+
+    /** Moving average of the connect time */
+    private volatile long latencyNanos;
+
+    private int unhealthyThreshold = 2;
+
+    /** How long a down backend refuses the connects, 0 never refuses */
+    private long breakerOpenNanos = TimeUnit.SECONDS.toNanos(5);
+
+    /** When a down backend lets the next trial connect through */
+    private volatile long trialTime;
+
+    private final AtomicBoolean trialRunning = new AtomicBoolean();
+
+    public Backend(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.unresolved = InetSocketAddress.createUnresolved(host, port);
+    }
+
+    /**
+     * Looks the host up, blocking the calling thread. A failed lookup keeps
+     * the previous addresses.
+     *
+     * @return false if the lookup failed
+     */
+    public boolean resolve() {
+        InetAddress[] found;
+        try {
+            found = InetAddress.getAllByName(host);
+        } catch (UnknownHostException e) {
+            log.warn("Unable to resolve backend {}, keeping {}", this, Arrays.toString(addresses), e);
+            return false;
+        }
+
+        InetSocketAddress[] resolved = new InetSocketAddress[found.length];
+        for (int i = 0; i < found.length; i++) {
+            resolved[i] = new InetSocketAddress(found[i], port);
+        }
+        if (!Arrays.equals(resolved, addresses)) {
+            log.info("Backend {} resolved to {}", this, Arrays.toString(resolved));
+            addresses = resolved;
+        }
+        return true;
+    }
+
+    public boolean isResolved() {
+        return addresses.length > 0;
+    }
+
+    /**
+     * Remembers the backend for the connected session and counts it as an
+     * active connection until {@link #detach(IoSession)}.
+     */
+    public void attach(IoSession session) {
+        session.setAttribute(SESSION_ATTRIBUTE, this);
+        connectionOpened();
+    }
+
+    public static Backend of(IoSession session) {
+        return (Backend) session.getAttribute(SESSION_ATTRIBUTE);
+    }
+
+    public static void detach(IoSession session) {
+        Backend backend = (Backend) session.removeAttribute(SESSION_ATTRIBUTE);
+        if (backend != null) {
+            backend.connectionClosed();
+        }
+    }
+
+    /**
+     * Counts a connection not tracked by a MINA session.
+     */
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * A connect, either for a client or a health probe, succeeded.
+     */
+    public void succeeded(long connectNanos) {
+        long average = latencyNanos;
+        // racy on purpose, a lost sample does not matter
+        latencyNanos = average == 0 ? connectNanos : average + (connectNanos - average) / 8;
+
+        failures.set(0);
+        if (!healthy) {
+            healthy = true;
+            log.info("Backend {} is up again", this);
+        }
+        trialRunning.set(false);
+    }
+
+    /**
+     * A connect failed. Enough failures in a row take the backend out of
+     * rotation until the next success.
+     */
+    public void failed() {
+        if (failures.incrementAndGet() >= unhealthyThreshold) {
+            // opens the breaker again after a failed trial as well
+            trialTime = System.nanoTime() + breakerOpenNanos;
+            trialRunning.set(false);
+            if (healthy) {
+                healthy = false;
+                log.warn("Backend {} is down after {} failed connects", this, failures.get());
+            }
+        }
+    }
+
+    /**
+     * Circuit breaker of the client connects. A healthy backend is always
+     * tried. A down one lets a single trial connect through once the breaker
+     * open time has passed, all the others fail fast instead of waiting for
+     * the connect timeout. The health probes are not subject to it.
+     */
+    public boolean allowConnect() {
+        if (healthy || breakerOpenNanos == 0) {
+            return true;
+        }
+        return System.nanoTime() - trialTime >= 0 && trialRunning.compareAndSet(false, true);
+    }
+
+    /**
+     * The next of the cached addresses, never resolves. The unresolved address
+     * fails the connect before the host was ever resolved.
+     */
+    public InetSocketAddress getAddress() {
+        InetSocketAddress[] cached = addresses;
+        if (cached.length == 0) {
+            return unresolved;
+        }
+        return cached[(nextAddress.getAndIncrement() & Integer.MAX_VALUE) % cached.length];
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    public void setUnhealthyThreshold(int unhealthyThreshold) {
+        this.unhealthyThreshold = unhealthyThreshold;
+    }
+
+    public void setBreakerOpenTime(long breakerOpenMillis) {
+        this.breakerOpenNanos = TimeUnit.MILLISECONDS.toNanos(breakerOpenMillis);
+    }
+
+    public String status() {
+        return String.format("%s, %d connections, %d addresses, %.2f ms",
+                healthy ? "UP" : "DOWN",
+                activeConnections.get(),
+                addresses.length,
+                latencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
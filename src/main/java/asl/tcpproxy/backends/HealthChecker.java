@@ -0,0 +1,82 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.backends;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.service.IoConnector;
+
+/**
+ * Periodically opens and closes a TCP connection to every backend of a tunnel
+ * to take the failed ones out of rotation and to put them back once they
+ * recover.
+ */
+public class HealthChecker {
+
+    private final IoConnector probeConnector;
+
+    private final Backend[] backends;
+
+    private ScheduledFuture<?> probes;
+
+    /**
+     * @param probeConnector
+     *            connector with its own no-op handler and the probe timeout as
+     *            its connect timeout
+     */
+    public HealthChecker(IoConnector probeConnector, Backend[] backends) {
+        this.probeConnector = probeConnector;
+        this.backends = backends;
+    }
+
+    public void start(ScheduledExecutorService scheduler, long interval) {
+        probes = scheduler.scheduleWithFixedDelay(this::probeAll, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    public void close() {
+        if (probes != null) {
+            probes.cancel(false);
+        }
+    }
+
+    private void probeAll() {
+        for (Backend backend : backends) {
+            probe(backend);
+        }
+    }
+
+    private void probe(final Backend backend) {
+        final long start = System.nanoTime();
+        probeConnector.connect(backend.getAddress()).addListener(new IoFutureListener<ConnectFuture>() {
+            public void operationComplete(ConnectFuture future) {
+                if (future.isConnected()) {
+                    backend.succeeded(System.nanoTime() - start);
+                    future.getSession().closeNow();
+                } else {
+                    backend.failed();
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.backends;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the backend for every new connection of a tunnel.
+ * 
+ * Only healthy backends are considered. If none is healthy all of them are,
+ * so the tunnel keeps trying rather than refusing every client.
+ */
+public class LoadBalancer {
+
+    public enum Strategy {
+        ROUND_ROBIN, LEAST_CONNECTIONS, LATENCY_WEIGHTED
+    }
+
+    /** Latency assumed for backends without any measured connect yet */
+    private static final long DEFAULT_LATENCY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Backend[] backends;
+
+    private final Strategy strategy;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    public LoadBalancer(List<Backend> backends, Strategy strategy) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("At least one backend is required");
+        }
+        this.backends = backends.toArray(new Backend[backends.size()]);
+        this.strategy = strategy;
+    }
+
+    public Backend select() {
+        if (backends.length == 1) {
+            return backends[0];
+        }
+
+        // the health checker flips the backends concurrently, the strategies
+        // work on a single reading of it
+        boolean[] candidates = new boolean[backends.length];
+        boolean anyHealthy = false;
+        for (int i = 0; i < backends.length; i++) {
+            candidates[i] = backends[i].isHealthy();
+            anyHealthy |= candidates[i];
+        }
+        if (!anyHealthy) {
+            Arrays.fill(candidates, true);
+        }
+
+        switch (strategy) {
+        case LEAST_CONNECTIONS:
+            return leastConnections(candidates);
+        case LATENCY_WEIGHTED:
+            return latencyWeighted(candidates);
+        default:
+            return roundRobin(candidates);
+        }
+    }
+
+    private Backend roundRobin(boolean[] candidates) {
+        int start = Math.floorMod(next.getAndIncrement(), backends.length);
+        for (int i = 0; i < backends.length; i++) {
+            int index = (start + i) % backends.length;
+            if (candidates[index]) {
+                return backends[index];
+            }
+        }
+        return backends[start];
+    }
+
+    private Backend leastConnections(boolean[] candidates) {
+        // start from a rotating position, so ties are spread as well
+        int start = Math.floorMod(next.getAndIncrement(), backends.length);
+        Backend best = null;
+        for (int i = 0; i < backends.length; i++) {
+            int index = (start + i) % backends.length;
+            Backend backend = backends[index];
+            if (candidates[index]
+                    && (best == null || backend.getActiveConnections() < best.getActiveConnections())) {
+                best = backend;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Random choice with the probability inverse to the connect latency.
+     */
+    private Backend latencyWeighted(boolean[] candidates) {
+        double[] weights = new double[backends.length];
+        double total = 0;
+        for (int i = 0; i < backends.length; i++) {
+            if (candidates[i]) {
+                weights[i] = weight(backends[i]);
+                total += weights[i];
+            }
+        }
+
+        double point = ThreadLocalRandom.current().nextDouble(total);
+        Backend last = null;
+        for (int i = 0; i < backends.length; i++) {
+            if (candidates[i]) {
+                point -= weights[i];
+                last = backends[i];
+                if (point < 0) {
+                    return last;
+                }
+            }
+        }
+        return last;
+    }
+
+    private static double weight(Backend backend) {
+        long latency = backend.getLatencyNanos();
+        return 1.0 / (latency > 0 ? latency : DEFAULT_LATENCY);
+    }
+
+    public Backend[] getBackends() {
+        return backends;
+    }
+}
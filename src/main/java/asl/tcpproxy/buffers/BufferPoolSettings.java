@@ -0,0 +1,93 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.buffers;
+
+/**
+ * Configuration of the {@link PooledBufferAllocator} shared by all the
+ * tunnels, bound from the {@code bufferPool} block.
+ */
+public class BufferPoolSettings {
+
+    /** Installs the pooled allocator, otherwise MINA allocates every buffer */
+    boolean enabled = true;
+
+    /** Off-heap buffers for the reads and writes of the sessions, pooled only */
+    boolean direct = false;
+
+    /** Largest pooled buffer, bigger ones are allocated and dropped */
+    int maxPooledSize = 1024 * 1024;
+
+    /** Bytes the shared pool holds at most, on top of the thread caches */
+    long maxPooledBytes = 64 * 1024 * 1024;
+
+    /** Buffers of a size kept by a thread for itself */
+    int threadCacheSize = 16;
+
+    /** Reports the buffers never freed, slow, meant for debugging only */
+    boolean leakDetection = false;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public void setDirect(boolean direct) {
+        this.direct = direct;
+    }
+
+    public int getMaxPooledSize() {
+        return maxPooledSize;
+    }
+
+    public void setMaxPooledSize(int maxPooledSize) {
+        this.maxPooledSize = maxPooledSize;
+    }
+
+    public long getMaxPooledBytes() {
+        return maxPooledBytes;
+    }
+
+    public void setMaxPooledBytes(long maxPooledBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+    }
+
+    public int getThreadCacheSize() {
+        return threadCacheSize;
+    }
+
+    public void setThreadCacheSize(int threadCacheSize) {
+        this.threadCacheSize = threadCacheSize;
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    public void setLeakDetection(boolean leakDetection) {
+        this.leakDetection = leakDetection;
+    }
+}
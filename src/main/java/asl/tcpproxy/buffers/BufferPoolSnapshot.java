@@ -0,0 +1,87 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.buffers;
+
+/**
+ * Point in time values of the {@link PooledBufferAllocator}. Serialized as is
+ * by the metrics endpoint.
+ */
+public class BufferPoolSnapshot {
+
+    long hits;
+
+    long misses;
+
+    long unpooled;
+
+    long pooledBytes;
+
+    long directBytes;
+
+    long leaks;
+
+    /**
+     * Allocations served from the pool.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * Allocations of a pooled size which had to create a new buffer.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Allocations above the largest pooled size.
+     */
+    public long getUnpooled() {
+        return unpooled;
+    }
+
+    public double getHitRate() {
+        long total = hits + misses + unpooled;
+        return total > 0 ? hits / (double) total : 0;
+    }
+
+    /**
+     * Bytes of the free buffers waiting in the pool and the thread caches.
+     */
+    public long getPooledBytes() {
+        return pooledBytes;
+    }
+
+    /**
+     * Off-heap bytes held by the allocator, both in use and pooled.
+     */
+    public long getDirectBytes() {
+        return directBytes;
+    }
+
+    /**
+     * Buffers garbage collected without being freed, counted with the leak
+     * detection only.
+     */
+    public long getLeaks() {
+        return leaks;
+    }
+}
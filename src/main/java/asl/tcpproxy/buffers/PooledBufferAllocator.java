@@ -0,0 +1,403 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.buffers;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.mina.core.buffer.AbstractIoBuffer;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferAllocator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link IoBufferAllocator} reusing the buffers freed by
+ * {@link IoBuffer#free()}, installed with {@link IoBuffer#setAllocator}.
+ * 
+ * The sizes are rounded up to a power of two. A freed buffer goes to the
+ * cache of the freeing thread first and to the shared pool of its size when
+ * that is full. The proxy frees a buffer on the processor of the other
+ * session, so the shared pool moves the buffers between the processors. What
+ * doesn't fit into the pool is left to the garbage collector.
+ * 
+ * Unlike MINA's CachedBufferAllocator a buffer may be freed on any thread.
+ * Derived buffers (slices, duplicates) are never pooled, the parent must not
+ * be freed while they are in use.
+ */
+public class PooledBufferAllocator implements IoBufferAllocator {
+
+    private static Logger log = LoggerFactory.getLogger(PooledBufferAllocator.class);
+
+    private static final int MIN_SHIFT = 6;
+
+    /** Smallest size class */
+    private static final int MIN_SIZE = 1 << MIN_SHIFT;
+
+    /** Bytes of a size a thread caches at most, at least one buffer */
+    private static final int THREAD_CACHE_BYTES = 1024 * 1024;
+
+    private final int maxSize;
+
+    private final int classes;
+
+    /** Buffers of a size class a thread caches */
+    private final int[] threadCacheLimits;
+
+    private final long maxPooledBytes;
+
+    private final Queue<ByteBuffer>[] sharedHeap;
+
+    private final Queue<ByteBuffer>[] sharedDirect;
+
+    /** Bytes in the shared queues, bounds them */
+    private final AtomicLong sharedBytes = new AtomicLong();
+
+    private final ThreadLocal<ThreadCache> caches = ThreadLocal.withInitial(ThreadCache::new);
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder unpooled = new LongAdder();
+
+    private final LongAdder pooledBytes = new LongAdder();
+
+    private final LongAdder directBytes = new LongAdder();
+
+    private final LongAdder leaks = new LongAdder();
+
+    /** null without the leak detection */
+    private final Set<Leak> tracked;
+
+    private final ReferenceQueue<PooledBuffer> collected = new ReferenceQueue<>();
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public PooledBufferAllocator(BufferPoolSettings settings) {
+        this.maxSize = Integer.highestOneBit(Math.max(MIN_SIZE, settings.getMaxPooledSize()));
+        this.classes = Integer.numberOfTrailingZeros(maxSize) - MIN_SHIFT + 1;
+        this.maxPooledBytes = settings.getMaxPooledBytes();
+        this.threadCacheLimits = new int[classes];
+        this.sharedHeap = new Queue[classes];
+        this.sharedDirect = new Queue[classes];
+        for (int i = 0; i < classes; i++) {
+            int size = MIN_SIZE << i;
+            threadCacheLimits[i] = Math.min(settings.getThreadCacheSize(), Math.max(1, THREAD_CACHE_BYTES / size));
+            sharedHeap[i] = new ConcurrentLinkedQueue<>();
+            sharedDirect[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.tracked = settings.isLeakDetection() ? ConcurrentHashMap.newKeySet() : null;
+    }
+
+    @Override
+    public IoBuffer allocate(int capacity, boolean direct) {
+        return new PooledBuffer(allocateNioBuffer(capacity, direct), capacity, true);
+    }
+
+    @Override
+    public ByteBuffer allocateNioBuffer(int capacity, boolean direct) {
+        if (tracked != null) {
+            reportLeaks();
+        }
+
+        if (capacity > maxSize) {
+            unpooled.increment();
+            return newBuffer(capacity, direct);
+        }
+
+        int size = capacity <= MIN_SIZE ? MIN_SIZE : Integer.highestOneBit(capacity - 1) << 1;
+        int index = Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+
+        ByteBuffer buffer = caches.get().poll(index, direct);
+        if (buffer == null) {
+            buffer = (direct ? sharedDirect : sharedHeap)[index].poll();
+            if (buffer != null) {
+                sharedBytes.addAndGet(-size);
+            }
+        }
+
+        if (buffer != null) {
+            hits.increment();
+            pooledBytes.add(-size);
+            buffer.clear();
+        } else {
+            misses.increment();
+            buffer = newBuffer(size, direct);
+        }
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    @Override
+    public IoBuffer wrap(ByteBuffer nioBuffer) {
+        // not ours, never pooled
+        return new PooledBuffer(nioBuffer, nioBuffer.capacity(), false);
+    }
+
+    /**
+     * Does nothing. Every new MINA buffer installs its allocator again, which
+     * disposes the one installed before, i.e. this one. See {@link #clear()}.
+     */
+    @Override
+    public void dispose() {
+        // like MINA's own allocators
+    }
+
+    /**
+     * Drops the buffers of the shared pool, once the allocator is not
+     * installed any more. The thread caches go with their threads.
+     */
+    public void clear() {
+        for (int i = 0; i < classes; i++) {
+            drop(sharedHeap[i]);
+            drop(sharedDirect[i]);
+        }
+    }
+
+    public BufferPoolSnapshot snapshot() {
+        BufferPoolSnapshot snapshot = new BufferPoolSnapshot();
+
+        snapshot.hits = hits.sum();
+        snapshot.misses = misses.sum();
+        snapshot.unpooled = unpooled.sum();
+        snapshot.pooledBytes = pooledBytes.sum();
+        snapshot.directBytes = directBytes.sum();
+        snapshot.leaks = leaks.sum();
+
+        return snapshot;
+    }
+
+    private ByteBuffer newBuffer(int capacity, boolean direct) {
+        if (direct) {
+            directBytes.add(capacity);
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        return ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * Takes the buffer back, it must not be used any more.
+     */
+    private void release(ByteBuffer buffer) {
+        int size = buffer.capacity();
+        if (buffer.isReadOnly() || size < MIN_SIZE || size > maxSize || Integer.bitCount(size) != 1) {
+            dropped(buffer);
+            return;
+        }
+        int index = Integer.numberOfTrailingZeros(size) - MIN_SHIFT;
+
+        if (caches.get().offer(buffer, index)) {
+            pooledBytes.add(size);
+        } else if (sharedBytes.addAndGet(size) <= maxPooledBytes) {
+            (buffer.isDirect() ? sharedDirect : sharedHeap)[index].offer(buffer);
+            pooledBytes.add(size);
+        } else {
+            sharedBytes.addAndGet(-size);
+            dropped(buffer);
+        }
+    }
+
+    private void dropped(ByteBuffer buffer) {
+        // freed by the garbage collector
+        if (buffer.isDirect()) {
+            directBytes.add(-buffer.capacity());
+        }
+    }
+
+    private void drop(Queue<ByteBuffer> queue) {
+        ByteBuffer buffer;
+        while ((buffer = queue.poll()) != null) {
+            sharedBytes.addAndGet(-buffer.capacity());
+            pooledBytes.add(-buffer.capacity());
+            dropped(buffer);
+        }
+    }
+
+    private void reportLeaks() {
+        Leak leak;
+        while ((leak = (Leak) collected.poll()) != null) {
+            if (tracked.remove(leak)) {
+                leaks.increment();
+                if (leak.direct) {
+                    directBytes.add(-leak.capacity);
+                }
+                log.warn("A buffer of {} bytes was garbage collected without being freed, allocated at",
+                        leak.capacity, leak.allocation);
+            }
+        }
+    }
+
+    /**
+     * The free buffers of a single thread, no synchronization needed.
+     */
+    private final class ThreadCache {
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private final ArrayDeque<ByteBuffer>[] heap = new ArrayDeque[classes];
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        private final ArrayDeque<ByteBuffer>[] direct = new ArrayDeque[classes];
+
+        ByteBuffer poll(int index, boolean isDirect) {
+            ArrayDeque<ByteBuffer> queue = (isDirect ? direct : heap)[index];
+            return queue != null ? queue.pollLast() : null;
+        }
+
+        boolean offer(ByteBuffer buffer, int index) {
+            ArrayDeque<ByteBuffer>[] queues = buffer.isDirect() ? direct : heap;
+            if (queues[index] == null) {
+                queues[index] = new ArrayDeque<>(threadCacheLimits[index]);
+            }
+            if (queues[index].size() >= threadCacheLimits[index]) {
+                return false;
+            }
+            queues[index].addLast(buffer);
+            return true;
+        }
+    }
+
+    /**
+     * A pooled buffer which was not freed yet.
+     */
+    private final class Leak extends WeakReference<PooledBuffer> {
+
+        private final int capacity;
+
+        private final boolean direct;
+
+        private final Throwable allocation = new Throwable();
+
+        Leak(PooledBuffer buffer, ByteBuffer buf) {
+            super(buffer, collected);
+            this.capacity = buf.capacity();
+            this.direct = buf.isDirect();
+        }
+    }
+
+    private final class PooledBuffer extends AbstractIoBuffer {
+
+        private ByteBuffer buf;
+
+        /** Whether buf is to be given back to the pool */
+        private boolean pooled;
+
+        private Leak leak;
+
+        PooledBuffer(ByteBuffer buf, int capacity, boolean pooled) {
+            super(PooledBufferAllocator.this, capacity);
+            this.buf = buf;
+            this.pooled = pooled;
+            buf.order(ByteOrder.BIG_ENDIAN);
+            if (pooled && tracked != null) {
+                leak = new Leak(this, buf);
+                tracked.add(leak);
+            }
+        }
+
+        /**
+         * A derived buffer sharing the memory of the parent.
+         */
+        PooledBuffer(PooledBuffer parent, ByteBuffer buf) {
+            super(parent);
+            this.buf = buf;
+        }
+
+        @Override
+        public ByteBuffer buf() {
+            if (buf == null) {
+                throw new IllegalStateException("Buffer has been freed already.");
+            }
+            return buf;
+        }
+
+        /**
+         * Called when the buffer grows or shrinks, the new one comes from
+         * {@link #allocateNioBuffer}.
+         */
+        @Override
+        protected void buf(ByteBuffer newBuf) {
+            ByteBuffer oldBuf = this.buf;
+            this.buf = newBuf;
+            if (pooled) {
+                release(oldBuf);
+            }
+            pooled = true;
+        }
+
+        @Override
+        protected IoBuffer duplicate0() {
+            return new PooledBuffer(this, buf().duplicate());
+        }
+
+        @Override
+        protected IoBuffer slice0() {
+            return new PooledBuffer(this, buf().slice());
+        }
+
+        @Override
+        protected IoBuffer asReadOnlyBuffer0() {
+            return new PooledBuffer(this, buf().asReadOnlyBuffer());
+        }
+
+        @Override
+        public byte[] array() {
+            return buf().array();
+        }
+
+        @Override
+        public int arrayOffset() {
+            return buf().arrayOffset();
+        }
+
+        @Override
+        public boolean hasArray() {
+            return buf().hasArray();
+        }
+
+        /**
+         * Gives the memory back, freeing twice does nothing.
+         */
+        @Override
+        public void free() {
+            ByteBuffer oldBuf = buf;
+            if (oldBuf == null || isDerived()) {
+                return;
+            }
+            buf = null;
+            if (leak != null) {
+                tracked.remove(leak);
+                leak.clear();
+                leak = null;
+            }
+            if (pooled) {
+                release(oldBuf);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.filters;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.service.IoAcceptor;
+import org.apache.mina.core.session.IoSession;
+
+import asl.tcpproxy.handlers.AbstractProxyIoHandler;
+import asl.tcpproxy.metrics.TunnelMetrics;
+
+/**
+ * A {@link IoFilter} which caps the bytes per second read by a tunnel as a
+ * whole and by every client address.
+ * 
+ * The same instance goes to the acceptor and the connector chains, so both
+ * directions are counted. The backend sessions are accounted to the client
+ * they are paired with. A read over the rate is forwarded as usual, but the
+ * session stops reading until the debt is paid. Nothing is buffered, the
+ * kernel window slows the sender down instead.
+ * 
+ * Both rates can be changed at any time, 0 means unlimited.
+ */
+public class BandwidthFilter extends IoFilterAdapter {
+	/** The bucket of the client the session belongs to */
+	private static final String CLIENT_BUCKET = BandwidthFilter.class.getName() + ".ClientBucket";
+
+	private final TokenBucket tunnelBucket;
+
+	private volatile long clientRate;
+
+	private final ConcurrentHashMap<InetAddress, ClientBucket> clientBuckets = new ConcurrentHashMap<>();
+
+	private final TunnelMetrics metrics;
+
+	private volatile ScheduledExecutorService scheduler;
+
+	/**
+	 * @param tunnelRate
+	 *            bytes per second of all the sessions of the tunnel
+	 * @param clientRate
+	 *            bytes per second of all the sessions of a single client
+	 *            address
+	 */
+	public BandwidthFilter(long tunnelRate, long clientRate, TunnelMetrics metrics) {
+		this.tunnelBucket = new TokenBucket(tunnelRate, tunnelRate);
+		this.clientRate = clientRate;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Paused reads are resumed on the scheduler. Without it nothing is
+	 * throttled.
+	 */
+	public void start(ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Applies the new rates to the sessions already running as well.
+	 */
+	public void setRates(long tunnelRate, long clientRate) {
+		tunnelBucket.setRate(tunnelRate, tunnelRate);
+		this.clientRate = clientRate;
+		for (ClientBucket bucket : clientBuckets.values()) {
+			bucket.setRate(clientRate, clientRate);
+		}
+	}
+
+	public long getTunnelRate() {
+		return tunnelBucket.getRate();
+	}
+
+	public long getClientRate() {
+		return clientRate;
+	}
+
+	@Override
+	public void messageReceived(NextFilter nextFilter, IoSession session, Object message) throws Exception {
+		if (scheduler != null && message instanceof IoBuffer) {
+			int bytes = ((IoBuffer) message).remaining();
+
+			long waitNanos = tunnelBucket.take(bytes);
+			if (clientRate > 0) {
+				ClientBucket bucket = clientBucket(session);
+				if (bucket != null) {
+					waitNanos = Math.max(waitNanos, bucket.take(bytes));
+				}
+			}
+			if (waitNanos > 0) {
+				throttle(session, waitNanos);
+			}
+		}
+		nextFilter.messageReceived(session, message);
+	}
+
+	@Override
+	public void sessionClosed(NextFilter nextFilter, IoSession session) throws Exception {
+		ClientBucket bucket = (ClientBucket) session.removeAttribute(CLIENT_BUCKET);
+		if (bucket != null) {
+			clientBuckets.computeIfPresent(bucket.client, (client, b) -> --b.sessions > 0 ? b : null);
+		}
+		nextFilter.sessionClosed(session);
+	}
+
+	/**
+	 * A session paused by the proxy handler for a full write queue of the
+	 * other side stays paused, the handler resumes it once the queue drained.
+	 * A queue draining meanwhile does not resume a throttled session.
+	 */
+	private void throttle(IoSession session, long waitNanos) {
+		ScheduledExecutorService scheduler = this.scheduler;
+		if (scheduler != null && AbstractProxyIoHandler.throttleRead(session)) {
+			metrics.readThrottled();
+			scheduler.schedule(() -> AbstractProxyIoHandler.unthrottleRead(session), waitNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * Looked up on the first read of the session only.
+	 */
+	private ClientBucket clientBucket(IoSession session) {
+		ClientBucket bucket = (ClientBucket) session.getAttribute(CLIENT_BUCKET);
+		if (bucket == null) {
+			InetAddress client = clientAddress(session);
+			if (client == null) {
+				return null;
+			}
+			bucket = clientBuckets.compute(client, (address, b) -> {
+				if (b == null) {
+					b = new ClientBucket(address, clientRate);
+				}
+				b.sessions++;
+				return b;
+			});
+			session.setAttribute(CLIENT_BUCKET, bucket);
+		}
+		return bucket;
+	}
+
+	private static InetAddress clientAddress(IoSession session) {
+		IoSession clientSession = session.getService() instanceof IoAcceptor
+				? session
+				: (IoSession) session.getAttribute(AbstractProxyIoHandler.OTHER_IO_SESSION);
+		if (clientSession != null) {
+			SocketAddress remoteAddress = clientSession.getRemoteAddress();
+			if (remoteAddress instanceof InetSocketAddress) {
+				return ((InetSocketAddress) remoteAddress).getAddress();
+			}
+		}
+		return null;
+	}
+
+	private static class ClientBucket extends TokenBucket {
+		final InetAddress client;
+
+		/** Changed inside the compute calls of the map only */
+		int sessions;
+
+		ClientBucket(InetAddress client, long rate) {
+			super(rate, rate);
+			this.client = client;
+		}
+	}
+}
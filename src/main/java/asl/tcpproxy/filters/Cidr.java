@@ -0,0 +1,103 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.filters;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * An IPv4 or IPv6 subnet given by an address and a prefix length, e.g.
+ * {@code 10.0.0.0/8} or {@code 2001:db8::/32}.
+ */
+public final class Cidr {
+
+	private final InetAddress address;
+
+	private final int prefixLength;
+
+	public Cidr(InetAddress address, int prefixLength) {
+		if (address == null) {
+			throw new IllegalArgumentException("Subnet address can not be null");
+		}
+		int maxLength = address.getAddress().length * 8;
+		if (prefixLength < 0 || prefixLength > maxLength) {
+			throw new IllegalArgumentException(
+					String.format("Prefix length of %s must be between 0 and %d", address, maxLength));
+		}
+		this.address = address;
+		this.prefixLength = prefixLength;
+	}
+
+	/**
+	 * The single host subnet of the address.
+	 */
+	public Cidr(InetAddress address) {
+		this(address, address.getAddress().length * 8);
+	}
+
+	/**
+	 * Parses {@code address/prefixLength} or a sole address which stands for
+	 * the single host subnet.
+	 */
+	public static Cidr parse(String cidr) throws UnknownHostException {
+		String trimmed = cidr.trim();
+		int slash = trimmed.indexOf('/');
+		if (slash < 0) {
+			return new Cidr(InetAddress.getByName(trimmed));
+		}
+
+		InetAddress address = InetAddress.getByName(trimmed.substring(0, slash));
+		try {
+			return new Cidr(address, Integer.parseInt(trimmed.substring(slash + 1)));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(String.format("Wrong prefix length in %s", cidr), e);
+		}
+	}
+
+	public InetAddress getAddress() {
+		return address;
+	}
+
+	public int getPrefixLength() {
+		return prefixLength;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof Cidr)) {
+			return false;
+		}
+		Cidr other = (Cidr) o;
+		return prefixLength == other.prefixLength && address.equals(other.address);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * address.hashCode() + prefixLength;
+	}
+
+	@Override
+	public String toString() {
+		return address.getHostAddress() + "/" + prefixLength;
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.filters;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * Immutable set of subnets answering whether an address belongs to any of them.
+ * 
+ * Every address family is kept in a binary trie packed into plain arrays, so a
+ * lookup walks at most prefix length nodes and does not allocate for IPv4
+ * addresses. An IPv6 lookup copies the 16 bytes of the address, the only way
+ * {@link InetAddress} hands them out, which is once per accepted connection.
+ * Changes are done by building a new matcher and swapping the reference.
+ */
+public final class CidrMatcher {
+
+	public static final CidrMatcher EMPTY = of(Arrays.<Cidr>asList());
+
+	private final Trie ipv4;
+
+	private final Trie ipv6;
+
+	private CidrMatcher(Trie ipv4, Trie ipv6) {
+		this.ipv4 = ipv4;
+		this.ipv6 = ipv6;
+	}
+
+	public static CidrMatcher of(Iterable<Cidr> subnets) {
+		Trie ipv4 = new Trie();
+		Trie ipv6 = new Trie();
+
+		for (Cidr subnet : subnets) {
+			if (subnet.getAddress() instanceof Inet4Address) {
+				ipv4.add(subnet.getAddress().getAddress(), subnet.getPrefixLength());
+			} else {
+				ipv6.add(subnet.getAddress().getAddress(), subnet.getPrefixLength());
+			}
+		}
+
+		return new CidrMatcher(ipv4.trim(), ipv6.trim());
+	}
+
+	public boolean matches(InetAddress address) {
+		if (address instanceof Inet4Address) {
+			// the hash code of an IPv4 address is the address itself
+			return ipv4.matches(address.hashCode());
+		}
+		// a copy, Inet6Address has neither an accessor nor a hash code to use
+		return ipv6.matches(address.getAddress());
+	}
+
+	public boolean isEmpty() {
+		return ipv4.size == 1 && !ipv4.terminal[0] && ipv6.size == 1 && !ipv6.terminal[0];
+	}
+
+	/**
+	 * Binary trie. Node {@code n} has its children at {@code 2n} and {@code 2n + 1}
+	 * of {@link #children}, 0 means no child since the root is never one.
+	 */
+	private static final class Trie {
+
+		int[] children = new int[32];
+
+		boolean[] terminal = new boolean[16];
+
+		int size = 1;
+
+		void add(byte[] address, int prefixLength) {
+			int node = 0;
+			for (int i = 0; i < prefixLength; i++) {
+				if (terminal[node]) {
+					// a shorter prefix already covers the subnet
+					return;
+				}
+				int slot = 2 * node + bit(address, i);
+				if (children[slot] == 0) {
+					// newNode() may replace the arrays
+					int child = newNode();
+					children[slot] = child;
+				}
+				node = children[slot];
+			}
+			terminal[node] = true;
+		}
+
+		boolean matches(int address) {
+			int node = 0;
+			for (int i = 0; i < 32; i++) {
+				if (terminal[node]) {
+					return true;
+				}
+				node = children[2 * node + ((address >>> (31 - i)) & 1)];
+				if (node == 0) {
+					return false;
+				}
+			}
+			return terminal[node];
+		}
+
+		boolean matches(byte[] address) {
+			int bits = address.length * 8;
+			int node = 0;
+			for (int i = 0; i < bits; i++) {
+				if (terminal[node]) {
+					return true;
+				}
+				node = children[2 * node + bit(address, i)];
+				if (node == 0) {
+					return false;
+				}
+			}
+			return terminal[node];
+		}
+
+		Trie trim() {
+			children = Arrays.copyOf(children, 2 * size);
+			terminal = Arrays.copyOf(terminal, size);
+			return this;
+		}
+
+		private int newNode() {
+			if (size == terminal.length) {
+				terminal = Arrays.copyOf(terminal, size * 2);
+				children = Arrays.copyOf(children, size * 4);
+			}
+			return size++;
+		}
+
+		private static int bit(byte[] address, int i) {
+			return (address[i >> 3] >>> (7 - (i & 7))) & 1;
+		}
+	}
+}
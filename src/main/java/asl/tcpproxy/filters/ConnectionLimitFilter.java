@@ -0,0 +1,339 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.filters;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.filterchain.IoFilter;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asl.tcpproxy.metrics.TunnelMetrics;
+
+/**
+ * A {@link IoFilter} which limits the sessions of a tunnel: the concurrent
+ * sessions, the concurrent sessions of a single client address and the rate
+ * of the new ones.
+ * 
+ * A session over a limit is either closed at once or, when a queue timeout is
+ * set, kept suspended in a FIFO queue until it fits the limits or the timeout
+ * expires. The handler sees neither the created nor the opened event of a
+ * queued session until it is admitted, so no backend connection is made for
+ * it. The IO processor thread never waits for a place.
+ *
+ * A queued session is admitted on the scheduler thread, so the handler gets
+ * its created and opened events there and not on the IO processor thread.
+ * Admitting and closing a queued session take the lock of the filter, the
+ * handler sees either all three events in order or none of them.
+ */
+public class ConnectionLimitFilter extends IoFilterAdapter {
+	/**
+	 * Holds the client address of the sessions counted in the limits, or TRUE
+	 * when the session has no IP address
+	 */
+	private static final String ADMITTED = ConnectionLimitFilter.class.getName() + ".Admitted";
+
+	/** Marks the sessions which went through the queue */
+	private static final String QUEUED = ConnectionLimitFilter.class.getName() + ".Queued";
+
+	/** Marks the sessions closed by the filter */
+	private static final String LIMITED = ConnectionLimitFilter.class.getName() + ".Limited";
+
+	/** How often the queue is checked for the sessions to admit or to expire */
+	private static final long QUEUE_CHECK_MILLIS = 50;
+
+	private final static Logger LOGGER = LoggerFactory.getLogger(ConnectionLimitFilter.class);
+
+	/** 0 means unlimited */
+	private final int maxSessions;
+
+	/** 0 means unlimited */
+	private final int maxSessionsPerClient;
+
+	/** null means unlimited */
+	private final TokenBucket acceptRate;
+
+	/** Milliseconds a session may wait in the queue, 0 rejects at once */
+	private final long queueTimeout;
+
+	private final int queueSize;
+
+	private final TunnelMetrics metrics;
+
+	private final AtomicInteger sessions = new AtomicInteger();
+
+	private final ConcurrentHashMap<InetAddress, Integer> clientSessions = new ConcurrentHashMap<>();
+
+	private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private volatile ScheduledFuture<?> queueCheck;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param acceptRate
+	 *            new sessions per second, 0 means unlimited
+	 * @param acceptBurst
+	 *            new sessions accepted at once after a quiet period, 0 means
+	 *            the same as the rate
+	 */
+	public ConnectionLimitFilter(int maxSessions,
+			int maxSessionsPerClient,
+			int acceptRate,
+			int acceptBurst,
+			long queueTimeout,
+			int queueSize,
+			TunnelMetrics metrics) {
+		this.maxSessions = maxSessions;
+		this.maxSessionsPerClient = maxSessionsPerClient;
+		this.acceptRate = acceptRate > 0
+				? new TokenBucket(acceptRate, acceptBurst > 0 ? acceptBurst : acceptRate)
+				: null;
+		this.queueTimeout = queueTimeout;
+		this.queueSize = queueSize;
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Schedules the checks of the queue. Without a scheduler the sessions over
+	 * the limits are rejected at once.
+	 */
+	public void start(ScheduledExecutorService scheduler) {
+		if (scheduler != null && queueTimeout > 0 && queueSize > 0) {
+			queueCheck = scheduler.scheduleWithFixedDelay(this::drain,
+					QUEUE_CHECK_MILLIS,
+					QUEUE_CHECK_MILLIS,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Rejects the queued sessions. The admitted ones are left alone.
+	 */
+	public synchronized void close() {
+		closed = true;
+		if (queueCheck != null) {
+			queueCheck.cancel(false);
+		}
+
+		Pending pending;
+		while ((pending = queue.poll()) != null) {
+			queued.decrementAndGet();
+			reject(pending.session);
+		}
+	}
+
+	public int getSessions() {
+		return sessions.get();
+	}
+
+	public int getQueued() {
+		return queued.get();
+	}
+
+	@Override
+	public void sessionCreated(NextFilter nextFilter, IoSession session) {
+		InetAddress client = clientAddress(session);
+
+		// the queued sessions go first
+		if (queue.isEmpty() && tryAdmit(session, client)) {
+			nextFilter.sessionCreated(session);
+		} else if (queueCheck != null && queued.incrementAndGet() <= queueSize) {
+			session.setAttribute(QUEUED);
+			session.suspendRead();
+			queue.offer(new Pending(nextFilter, session, client));
+			metrics.connectionQueued();
+		} else {
+			if (queueCheck != null) {
+				queued.decrementAndGet();
+			}
+			metrics.connectionLimited();
+			reject(session);
+		}
+	}
+
+	@Override
+	public void sessionOpened(NextFilter nextFilter, IoSession session)
+			throws Exception {
+		// the queued sessions are opened when admitted
+		if (!session.containsAttribute(QUEUED) && !session.containsAttribute(LIMITED)) {
+			nextFilter.sessionOpened(session);
+		}
+	}
+
+	@Override
+	public void sessionClosed(NextFilter nextFilter, IoSession session)
+			throws Exception {
+		boolean admitted;
+		if (session.containsAttribute(QUEUED)) {
+			// drain admits it completely or, being closed now, not at all
+			synchronized (this) {
+				admitted = closeAdmitted(nextFilter, session);
+			}
+		} else {
+			admitted = closeAdmitted(nextFilter, session);
+		}
+		if (admitted && !queue.isEmpty()) {
+			drain();
+		}
+	}
+
+	/**
+	 * @return false if the session was never admitted, the handler has never
+	 *         seen it then
+	 */
+	private boolean closeAdmitted(NextFilter nextFilter, IoSession session) {
+		Object admitted = session.removeAttribute(ADMITTED);
+		if (admitted == null) {
+			return false;
+		}
+		release(admitted instanceof InetAddress ? (InetAddress) admitted : null);
+		nextFilter.sessionClosed(session);
+		return true;
+	}
+
+	/**
+	 * Admits the queued sessions which fit the limits now and rejects the
+	 * ones waiting for too long. A session closing meanwhile waits for the
+	 * lock in sessionClosed, so the check for a closed one holds until its
+	 * events were fired.
+	 */
+	private synchronized void drain() {
+		if (closed) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		Pending pending;
+		while ((pending = queue.peek()) != null) {
+			if (!pending.session.isConnected() || pending.session.isClosing()) {
+				// the client gave up while waiting
+				queue.poll();
+				queued.decrementAndGet();
+			} else if (now - pending.since >= queueTimeout) {
+				queue.poll();
+				queued.decrementAndGet();
+				metrics.queueTimedOut();
+				reject(pending.session);
+			} else if (tryAdmit(pending.session, pending.client)) {
+				queue.poll();
+				queued.decrementAndGet();
+				// the reads are resumed by the handler once paired
+				pending.nextFilter.sessionCreated(pending.session);
+				pending.nextFilter.sessionOpened(pending.session);
+			} else {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Takes a place in all the limits or in none of them.
+	 */
+	private boolean tryAdmit(IoSession session, InetAddress client) {
+		if (maxSessions > 0 && sessions.incrementAndGet() > maxSessions) {
+			sessions.decrementAndGet();
+			return false;
+		}
+
+		if (maxSessionsPerClient > 0 && client != null) {
+			boolean[] admitted = new boolean[1];
+			clientSessions.compute(client, (address, count) -> {
+				int current = count != null ? count : 0;
+				admitted[0] = current < maxSessionsPerClient;
+				return admitted[0] ? current + 1 : count;
+			});
+			if (!admitted[0]) {
+				releaseSession();
+				return false;
+			}
+		}
+
+		// a token is taken last as it can't be given back
+		if (acceptRate != null && !acceptRate.tryTake()) {
+			releaseClient(client);
+			releaseSession();
+			return false;
+		}
+
+		session.setAttribute(ADMITTED, client != null ? client : Boolean.TRUE);
+		return true;
+	}
+
+	private void release(InetAddress client) {
+		releaseClient(client);
+		releaseSession();
+	}
+
+	private void releaseSession() {
+		if (maxSessions > 0) {
+			sessions.decrementAndGet();
+		}
+	}
+
+	private void releaseClient(InetAddress client) {
+		if (maxSessionsPerClient > 0 && client != null) {
+			clientSessions.computeIfPresent(client, (address, count) -> count > 1 ? count - 1 : null);
+		}
+	}
+
+	private void reject(IoSession session) {
+		// counted in the metrics, a flood must not flood the log as well
+		LOGGER.debug("The connection limit of the tunnel has been reached for: {}", session.getRemoteAddress());
+
+		// nothing must be read until the session is gone
+		session.setAttribute(LIMITED);
+		session.suspendRead();
+		session.closeNow();
+	}
+
+	private static InetAddress clientAddress(IoSession session) {
+		SocketAddress remoteAddress = session.getRemoteAddress();
+		if (remoteAddress instanceof InetSocketAddress) {
+			return ((InetSocketAddress) remoteAddress).getAddress();
+		}
+		return null;
+	}
+
+	private static class Pending {
+		final NextFilter nextFilter;
+		final IoSession session;
+		final InetAddress client;
+		final long since = System.currentTimeMillis();
+
+		Pending(NextFilter nextFilter, IoSession session, InetAddress client) {
+			this.nextFilter = nextFilter;
+			this.session = session;
+			this.client = client;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.filters;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.mina.core.service.IoAcceptor;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.executor.IoEventQueueHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Counts the events waiting in the queues of an
+ * {@link org.apache.mina.filter.executor.OrderedThreadPoolExecutor} and
+ * bounds them. The events are offered by the selector threads shared by all
+ * the tunnels, so nothing ever waits here. A client session opened while
+ * queueSize events are queued is closed right away instead. Its closing is
+ * not queued either, the handler never saw it. Every other closing is queued
+ * regardless of the limit.
+ *
+ * The limit is a soft bound. The check in accept and the count in offered
+ * are separate steps, so every selector thread may queue one opening past
+ * it at the same time. The queue overshoots by at most the number of
+ * selector threads, which is not worth a reservation on every event.
+ *
+ * Backend sessions are never shed, the connect future completes ahead of the
+ * opening and pairs them with their client already. Their closing has to
+ * reach the handler to close the client and release the backend.
+ */
+public class EventQueueMonitor implements IoEventQueueHandler {
+	/** Set on the sessions closed for a full queue */
+	private static final String SHED = EventQueueMonitor.class.getName() + ".Shed";
+
+	private final static Logger log = LoggerFactory.getLogger(EventQueueMonitor.class);
+
+	private final int queueSize;
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final LongAdder shed = new LongAdder();
+
+	public EventQueueMonitor(int queueSize) {
+		this.queueSize = Math.max(1, queueSize);
+	}
+
+	@Override
+	public boolean accept(Object source, IoEvent event) {
+		IoSession session = event.getSession();
+		if (event.getType() == IoEventType.SESSION_OPENED
+				&& session.getService() instanceof IoAcceptor
+				&& queued.get() >= queueSize) {
+			session.setAttribute(SHED, Boolean.TRUE);
+			shed.increment();
+			if (log.isDebugEnabled()) {
+				log.debug("The event queue is full, closing {}", session);
+			}
+			session.closeNow();
+			return false;
+		}
+		return event.getType() != IoEventType.SESSION_CLOSED || !session.containsAttribute(SHED);
+	}
+
+	@Override
+	public void offered(Object source, IoEvent event) {
+		queued.incrementAndGet();
+	}
+
+	@Override
+	public void polled(Object source, IoEvent event) {
+		queued.decrementAndGet();
+	}
+
+	/**
+	 * Events waiting for a thread.
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	/**
+	 * Client sessions closed because the queue was full.
+	 */
+	public long getShed() {
+		return shed.sum();
+	}
+}
@@ -0,0 +1,123 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.filters;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket refilled lazily on every take, so it needs no timer. The rate
+ * can be changed while in use. An unlimited bucket takes no lock, it sits on
+ * the forwarding path of every session of a tunnel.
+ */
+class TokenBucket {
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	/** Tokens per second, 0 means unlimited. Written under the lock only */
+	private volatile long rate;
+
+	private long capacity;
+
+	private double tokens;
+
+	/** System.nanoTime, replaced by the tests */
+	private final LongSupplier clock;
+
+	private long refillTime;
+
+	TokenBucket(long rate, long capacity) {
+		this(rate, capacity, System::nanoTime);
+	}
+
+	TokenBucket(long rate, long capacity, LongSupplier clock) {
+		this.rate = rate;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.clock = clock;
+		this.refillTime = clock.getAsLong();
+	}
+
+	synchronized void setRate(long rate, long capacity) {
+		if (this.rate == 0) {
+			// nothing was counted while unlimited
+			tokens = capacity;
+			refillTime = clock.getAsLong();
+		} else {
+			refill();
+		}
+		this.rate = rate;
+		this.capacity = capacity;
+		this.tokens = Math.min(tokens, capacity);
+	}
+
+	long getRate() {
+		return rate;
+	}
+
+	/**
+	 * Takes a token if there is one.
+	 */
+	boolean tryTake() {
+		if (rate == 0) {
+			return true;
+		}
+		synchronized (this) {
+			// the rate may have been set to unlimited since the check
+			if (rate == 0) {
+				return true;
+			}
+			refill();
+			if (tokens >= 1) {
+				tokens -= 1;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Takes the tokens even when there are not enough of them. The debt is
+	 * paid by the following refills.
+	 * 
+	 * @return nanoseconds until the debt is paid, 0 if there is none
+	 */
+	long take(long amount) {
+		if (rate == 0) {
+			return 0;
+		}
+		synchronized (this) {
+			long rate = this.rate;
+			if (rate == 0) {
+				return 0;
+			}
+			refill();
+			tokens -= amount;
+			return tokens < 0 ? (long) (-tokens * NANOS_PER_SECOND / rate) : 0;
+		}
+	}
+
+	private void refill() {
+		long now = clock.getAsLong();
+		// in double, the product of the idle nanos and the rate overflows a
+		// long after 92 seconds at 100 MB/s
+		tokens = Math.min(capacity, tokens + (now - refillTime) * (double) rate / NANOS_PER_SECOND);
+		refillTime = now;
+	}
+}
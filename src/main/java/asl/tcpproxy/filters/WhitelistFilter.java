@@ -22,33 +22,55 @@ package asl.tcpproxy.filters;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Set;
 
 import org.apache.mina.core.filterchain.IoFilter;
 import org.apache.mina.core.filterchain.IoFilterAdapter;
-import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
-import org.apache.mina.core.write.WriteRequest;
-import org.apache.mina.filter.firewall.Subnet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import asl.tcpproxy.metrics.TunnelMetrics;
+
 /**
  * A {@link IoFilter} which allows connections from whitelisted remote address.
  * 
+ * The address is checked once when the session is created. Messages and idle
+ * events are not intercepted at all.
+ * 
  * Was slightly changed standard MINA BlacklistFilter by
  * 
  * @author <a href="http://mina.apache.org">Apache MINA Project</a>
  * @org.apache.xbean.XBean
  */
 public class WhitelistFilter extends IoFilterAdapter {
-	/** The list of blocked addresses */
-	private final List<Subnet> blacklist = new CopyOnWriteArrayList<Subnet>();
+	/** Marks the sessions rejected when they were created */
+	private static final String BLOCKED = WhitelistFilter.class.getName() + ".Blocked";
+
+	/** The list of blocked addresses. Replaced as a whole on every change */
+	private Set<Cidr> blacklist = new LinkedHashSet<>();
+
+	/** Lookup structure built from the blacklist */
+	private volatile CidrMatcher matcher = CidrMatcher.EMPTY;
 
 	private final static Logger LOGGER = LoggerFactory
 			.getLogger(WhitelistFilter.class);
 
+	/** Counts the rejected connections */
+	private final TunnelMetrics metrics;
+
+	public WhitelistFilter() {
+		this(new TunnelMetrics());
+	}
+
+	public WhitelistFilter(TunnelMetrics metrics) {
+		this.metrics = metrics;
+	}
+
 	/**
 	 * Sets the addresses to be blacklisted.
 	 *
@@ -62,12 +84,7 @@ public class WhitelistFilter extends IoFilterAdapter {
 			throw new IllegalArgumentException("addresses");
 		}
 
-		blacklist.clear();
-
-		for (int i = 0; i < addresses.length; i++) {
-			InetAddress addr = addresses[i];
-			block(addr);
-		}
+		setBlacklist(Arrays.asList(addresses));
 	}
 
 	/**
@@ -78,16 +95,12 @@ public class WhitelistFilter extends IoFilterAdapter {
 	 * @param subnets
 	 *            an array of subnets to be blacklisted.
 	 */
-	public void setSubnetBlacklist(Subnet[] subnets) {
+	public void setSubnetBlacklist(Cidr[] subnets) {
 		if (subnets == null) {
 			throw new IllegalArgumentException("Subnets must not be null");
 		}
 
-		blacklist.clear();
-
-		for (Subnet subnet : subnets) {
-			block(subnet);
-		}
+		setSubnetBlacklist(Arrays.asList(subnets));
 	}
 
 	/**
@@ -107,11 +120,11 @@ public class WhitelistFilter extends IoFilterAdapter {
 			throw new IllegalArgumentException("addresses");
 		}
 
-		blacklist.clear();
-
+		List<Cidr> subnets = new ArrayList<>();
 		for (InetAddress address : addresses) {
-			block(address);
+			subnets.add(new Cidr(address));
 		}
+		setSubnetBlacklist(subnets);
 	}
 
 	/**
@@ -122,16 +135,21 @@ public class WhitelistFilter extends IoFilterAdapter {
 	 * @param subnets
 	 *            an array of subnets to be blacklisted.
 	 */
-	public void setSubnetBlacklist(Iterable<Subnet> subnets) {
+	public synchronized void setSubnetBlacklist(Iterable<Cidr> subnets) {
 		if (subnets == null) {
 			throw new IllegalArgumentException("Subnets must not be null");
 		}
 
-		blacklist.clear();
-
-		for (Subnet subnet : subnets) {
-			block(subnet);
+		Set<Cidr> newBlacklist = new LinkedHashSet<>();
+		for (Cidr subnet : subnets) {
+			if (subnet == null) {
+				throw new IllegalArgumentException("Subnet can not be null");
+			}
+			newBlacklist.add(subnet);
 		}
+
+		blacklist = newBlacklist;
+		matcher = CidrMatcher.of(newBlacklist);
 	}
 
 	/**
@@ -143,18 +161,20 @@ public class WhitelistFilter extends IoFilterAdapter {
 					"Adress to block can not be null");
 		}
 
-		block(new Subnet(address, 32));
+		block(new Cidr(address));
 	}
 
 	/**
 	 * Blocks the specified subnet.
 	 */
-	public void block(Subnet subnet) {
+	public synchronized void block(Cidr subnet) {
 		if (subnet == null) {
 			throw new IllegalArgumentException("Subnet can not be null");
 		}
 
-		blacklist.add(subnet);
+		Set<Cidr> newBlacklist = new LinkedHashSet<>(blacklist);
+		newBlacklist.add(subnet);
+		setSubnetBlacklist(newBlacklist);
 	}
 
 	/**
@@ -166,26 +186,31 @@ public class WhitelistFilter extends IoFilterAdapter {
 					"Adress to unblock can not be null");
 		}
 
-		unblock(new Subnet(address, 32));
+		unblock(new Cidr(address));
 	}
 
 	/**
 	 * Unblocks the specified subnet.
 	 */
-	public void unblock(Subnet subnet) {
+	public synchronized void unblock(Cidr subnet) {
 		if (subnet == null) {
 			throw new IllegalArgumentException("Subnet can not be null");
 		}
 
-		blacklist.remove(subnet);
+		Set<Cidr> newBlacklist = new LinkedHashSet<>(blacklist);
+		newBlacklist.remove(subnet);
+		setSubnetBlacklist(newBlacklist);
 	}
 
 	@Override
 	public void sessionCreated(NextFilter nextFilter, IoSession session) {
+		// the only check for the session. The decision is remembered so the
+		// rest of the events pass through without looking at the address again
 		if (!isBlocked(session)) {
 			// forward if not blocked
 			nextFilter.sessionCreated(session);
 		} else {
+			metrics.connectionRejected();
 			blockSession(session);
 		}
 	}
@@ -193,84 +218,45 @@ public class WhitelistFilter extends IoFilterAdapter {
 	@Override
 	public void sessionOpened(NextFilter nextFilter, IoSession session)
 			throws Exception {
-		if (!isBlocked(session)) {
+		if (!session.containsAttribute(BLOCKED)) {
 			// forward if not blocked
 			nextFilter.sessionOpened(session);
-		} else {
-			blockSession(session);
 		}
 	}
 
 	@Override
 	public void sessionClosed(NextFilter nextFilter, IoSession session)
 			throws Exception {
-		if (!isBlocked(session)) {
+		if (!session.containsAttribute(BLOCKED)) {
 			// forward if not blocked
 			nextFilter.sessionClosed(session);
-		} else {
-			blockSession(session);
-		}
-	}
-
-	@Override
-	public void sessionIdle(NextFilter nextFilter, IoSession session,
-			IdleStatus status) throws Exception {
-		if (!isBlocked(session)) {
-			// forward if not blocked
-			nextFilter.sessionIdle(session, status);
-		} else {
-			blockSession(session);
-		}
-	}
-
-	@Override
-	public void messageReceived(NextFilter nextFilter, IoSession session,
-			Object message) {
-		if (!isBlocked(session)) {
-			// forward if not blocked
-			nextFilter.messageReceived(session, message);
-		} else {
-			blockSession(session);
-		}
-	}
-
-	@Override
-	public void messageSent(NextFilter nextFilter, IoSession session,
-			WriteRequest writeRequest) throws Exception {
-		if (!isBlocked(session)) {
-			// forward if not blocked
-			nextFilter.messageSent(session, writeRequest);
-		} else {
-			blockSession(session);
 		}
 	}
 
 	private void blockSession(IoSession session) {
-		LOGGER.warn("Remote address in the blacklist; closing.");
-		session.close(true);
+		// nothing must be read until the session is gone
+		session.setAttribute(BLOCKED);
+		session.suspendRead();
+		session.closeNow();
 	}
 
 	// CHANGED!!!!!
 	// only change is to invert result of this method!
-	private boolean isBlocked(IoSession session) {
+	// package visible for the benchmarks
+	boolean isBlocked(IoSession session) {
 		SocketAddress remoteAddress = session.getRemoteAddress();
 
 		if (remoteAddress instanceof InetSocketAddress) {
 			InetAddress address = ((InetSocketAddress) remoteAddress)
 					.getAddress();
 
-			// check all subnets
-			for (Subnet subnet : blacklist) {
-				if (subnet.inSubnet(address)) {
-					return false;
-				}
+			if (address != null && matcher.matches(address)) {
+				return false;
 			}
 		}
 
-		if (LOGGER.isWarnEnabled()) {
-			LOGGER.warn(String.format("The connection has been disallowed for: %s",
-					remoteAddress));
-		}
+		// counted in the metrics, a warning per connection would flood the log
+		LOGGER.debug("The connection has been disallowed for: {}", remoteAddress);
 
 		return true;
 	}
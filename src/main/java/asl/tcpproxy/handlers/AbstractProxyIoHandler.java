@@ -19,12 +19,21 @@
  */
 package asl.tcpproxy.handlers;
 
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
+import org.apache.mina.transport.socket.nio.NioSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import asl.tcpproxy.metrics.TunnelMetrics;
+
 /**
  * Base class of {@link org.apache.mina.core.service.IoHandler} classes which
  * handle proxied connections.
@@ -34,20 +43,86 @@ import org.slf4j.LoggerFactory;
 public abstract class AbstractProxyIoHandler extends IoHandlerAdapter {
 	//private static final Charset CHARSET = Charset.forName("iso8859-1");
 	public static final String OTHER_IO_SESSION = AbstractProxyIoHandler.class.getName() + ".OtherIoSession";
+	private static final String READ_SUSPENDED = AbstractProxyIoHandler.class.getName() + ".ReadSuspended";
+	private static final String REAPED = AbstractProxyIoHandler.class.getName() + ".Reaped";
+	private static final String INPUT_CLOSED = AbstractProxyIoHandler.class.getName() + ".InputClosed";
+	private static final String SHUTDOWN_PENDING = AbstractProxyIoHandler.class.getName() + ".ShutdownPending";
+	/** Set while the reads are paused by the bandwidth filter */
+	private static final String THROTTLED = AbstractProxyIoHandler.class.getName() + ".Throttled";
+	/** What a backend sent while waiting in the pool, e.g. a greeting */
+	private static final String EARLY_DATA = AbstractProxyIoHandler.class.getName() + ".EarlyData";
+	/** Why the pair was closed, for the access log. The first reason wins */
+	protected static final String CLOSE_REASON = AbstractProxyIoHandler.class.getName() + ".CloseReason";
+
+	/**
+	 * MINA has no half-close, the output of a session is shut down on its
+	 * socket channel. Null when the field is not accessible.
+	 */
+	private static final Field CHANNEL = channelField();
 
 	private final static Logger log = LoggerFactory.getLogger(AbstractProxyIoHandler.class);
 
+	/**
+	 * The last buffer sent by the processor thread. The processor still
+	 * resets and checks a buffer after its messageSent, so it is freed with
+	 * the next buffer sent on the same thread. One buffer per processor
+	 * thread waits, not one per idle session.
+	 */
+	private static final ThreadLocal<IoBuffer[]> LAST_SENT = ThreadLocal.withInitial(() -> new IoBuffer[1]);
+
+	/**
+	 * When set the received buffer is handed off to the other session as is.
+	 * Otherwise every chunk is copied into a freshly allocated buffer first.
+	 */
+	private final boolean copyFreeForwarding;
+
+	/**
+	 * Amount of bytes queued for the other session which suspends reads of this
+	 * one.
+	 */
+	private final int writeHighWatermark;
+
+	/**
+	 * Amount of bytes queued for the other session which resumes the suspended
+	 * reads again.
+	 */
+	private final int writeLowWatermark;
+
+	private final IdlePolicy idlePolicy;
+
+	protected final TunnelMetrics metrics;
+
+	protected AbstractProxyIoHandler(boolean copyFreeForwarding,
+			int writeHighWatermark,
+			int writeLowWatermark,
+			IdlePolicy idlePolicy,
+			TunnelMetrics metrics) {
+		if (writeLowWatermark > writeHighWatermark) {
+			throw new IllegalArgumentException(String.format("Low watermark %d is above high watermark %d",
+					writeLowWatermark,
+					writeHighWatermark));
+		}
+		this.copyFreeForwarding = copyFreeForwarding;
+		this.writeHighWatermark = writeHighWatermark;
+		this.writeLowWatermark = writeLowWatermark;
+		this.idlePolicy = idlePolicy;
+		this.metrics = metrics;
+	}
+
 	@Override
 	public void sessionCreated(IoSession session) throws Exception {
+		session.setAttribute(READ_SUSPENDED, new AtomicBoolean());
 		session.suspendRead();
 		session.suspendWrite();
 	}
 
 	@Override
 	public void sessionClosed(IoSession session) throws Exception {
-		if (log.isWarnEnabled()) {
-			log.warn("Closing session:" + session.getAttribute(OTHER_IO_SESSION));
+		IoBuffer early = (IoBuffer) session.removeAttribute(EARLY_DATA);
+		if (early != null) {
+			early.free();
 		}
+
 		if (session.getAttribute(OTHER_IO_SESSION) != null) {
 			IoSession sess = (IoSession) session.getAttribute(OTHER_IO_SESSION);
 			sess.setAttribute(OTHER_IO_SESSION, null);
@@ -56,49 +131,334 @@ public abstract class AbstractProxyIoHandler extends IoHandlerAdapter {
 		}
 	}
 
+	@Override
+	public void sessionIdle(IoSession session, IdleStatus status) throws Exception {
+		// the next read allocates the smallest buffer and grows from there
+		session.getConfig().setReadBufferSize(session.getConfig().getMinReadBufferSize());
+
+		// sessions not paired yet or waiting in the backend pool are left alone
+		IoSession otherSession = (IoSession) session.getAttribute(OTHER_IO_SESSION);
+		if (otherSession != null && idlePolicy.isExpired(session, otherSession, status, System.currentTimeMillis())) {
+			reap(session, otherSession, status.toString());
+		}
+	}
+
 	@Override
 	public void messageReceived(IoSession session, Object message) throws Exception {
 		IoBuffer rb = (IoBuffer) message;
-		IoBuffer wb = IoBuffer.allocate(rb.remaining());
-		rb.mark();
-		wb.put(rb);
-		wb.flip();
-		((IoSession) session.getAttribute(OTHER_IO_SESSION)).write(wb);
-		rb.reset();
+		IoSession otherSession = (IoSession) session.getAttribute(OTHER_IO_SESSION);
+		countReceived(rb.remaining());
+
+		if (idlePolicy.isTooOld(session, session.getLastReadTime())) {
+			// dropped, back to the pool
+			rb.free();
+			// the other session may have closed already
+			if (otherSession != null) {
+				reap(session, otherSession, "max lifetime");
+			} else {
+				closeReason(session, "max lifetime");
+				session.closeNow();
+			}
+			return;
+		}
+
+		if (otherSession == null) {
+			otherSession = holdEarly(session, rb);
+			if (otherSession == null) {
+				return;
+			}
+		}
+
+		if (copyFreeForwarding) {
+			// MINA allocates a new buffer for every read, so the received one
+			// can go straight to the write queue. It is released after it was sent.
+			otherSession.write(rb);
+		} else {
+			IoBuffer wb = IoBuffer.allocate(rb.remaining());
+			wb.put(rb);
+			wb.flip();
+			otherSession.write(wb);
+			// nothing after the handler reads it, back to the pool
+			rb.free();
+		}
+
+		suspendReadIfOverflown(session, otherSession);
 
 //		if (log.isDebugEnabled()) {
 //			log.debug(rb.getString(CHARSET.newDecoder()));
 //		}
 	}
 
-//	@Override
-//	public void messageSent(IoSession session, Object message) throws Exception {
-//		super.messageSent(session, message);
-//
-//		if (log.isDebugEnabled()) {
-//			IoBuffer rb = (IoBuffer) message;
-//			log.debug("Message sent for " + session.getAttribute(OTHER_IO_SESSION).toString());
-//			log.debug(rb.getString(CHARSET.newDecoder()));
-//		}
-//	}
+	@Override
+	public void messageSent(IoSession session, Object message) throws Exception {
+		// the buffer was either handed off or copied by messageReceived of the
+		// other session. The processor is done with the one sent before.
+		if (message instanceof IoBuffer) {
+			IoBuffer[] lastSent = LAST_SENT.get();
+			IoBuffer previous = lastSent[0];
+			lastSent[0] = (IoBuffer) message;
+			if (previous != null && previous != message) {
+				previous.free();
+			}
+		}
+
+		IoSession otherSession = (IoSession) session.getAttribute(OTHER_IO_SESSION);
+		if (otherSession != null && session.getScheduledWriteBytes() <= writeLowWatermark) {
+			resumeRead(otherSession);
+		}
+		shutdownOutputIfFlushed(session);
+	}
 
+	/**
+	 * The peer of the session sent a FIN. It is passed on as a FIN to the other
+	 * session once everything read before has been written to it, the other
+	 * direction keeps forwarding. The pair is closed when both directions are
+	 * done.
+	 */
 	@Override
-	public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+	public void inputClosed(IoSession session) throws Exception {
+		synchronized (readLock(session)) {
+			// the selector reports the end of the stream until reads stop
+			session.suspendRead();
+			if (session.setAttributeIfAbsent(INPUT_CLOSED, Boolean.TRUE) != null) {
+				return;
+			}
+		}
 
-		if (log.isErrorEnabled()) {
-			log.error("Exception Caught for " + session.getAttribute(OTHER_IO_SESSION).toString());
-			log.error(cause.toString());
+		IoSession otherSession = (IoSession) session.getAttribute(OTHER_IO_SESSION);
+		if (otherSession == null) {
+			session.closeNow();
+		} else if (otherSession.containsAttribute(INPUT_CLOSED) || CHANNEL == null) {
+			closeReason(session, "closed");
+			closeReason(otherSession, "closed");
+			session.closeOnFlush();
+			otherSession.closeOnFlush();
+		} else {
+			if (log.isDebugEnabled()) {
+				log.debug("Half-closing {} after {}", otherSession, session);
+			}
+			otherSession.setAttribute(SHUTDOWN_PENDING, Boolean.TRUE);
+			shutdownOutputIfFlushed(otherSession);
 		}
+	}
 
-		super.exceptionCaught(session, cause);
+	/**
+	 * Keeps what an unpaired session received until it is paired, unless it
+	 * was paired meanwhile. A session saying more than the high watermark
+	 * unasked is closed.
+	 *
+	 * @return the other session if it was paired meanwhile, null otherwise
+	 */
+	private IoSession holdEarly(IoSession session, IoBuffer rb) {
+		synchronized (readLock(session)) {
+			IoSession otherSession = (IoSession) session.getAttribute(OTHER_IO_SESSION);
+			if (otherSession != null) {
+				return otherSession;
+			}
 
+			IoBuffer early = (IoBuffer) session.getAttribute(EARLY_DATA);
+			if (early == null) {
+				early = IoBuffer.allocate(rb.remaining()).setAutoExpand(true);
+				session.setAttribute(EARLY_DATA, early);
+			}
+			early.put(rb);
+			rb.free();
+			if (early.position() > writeHighWatermark) {
+				closeReason(session, "unpaired data");
+				session.closeNow();
+			}
+			return null;
+		}
 	}
 
-//	@Override
-//	public void inputClosed(IoSession session) throws Exception {
-//		if (log.isDebugEnabled()) {
-//			log.debug(String.format("Input closed for session: %s", session.toString()));
-//		}
-//		super.inputClosed(session);
-//	}
+	/**
+	 * Makes the client the other session of a backend. What the backend sent
+	 * before is queued to the client ahead of anything it sends later.
+	 */
+	protected static void pairBackend(IoSession backend, IoSession client) {
+		synchronized (readLock(backend)) {
+			IoBuffer early = (IoBuffer) backend.removeAttribute(EARLY_DATA);
+			if (early != null) {
+				early.flip();
+				client.write(early);
+			}
+			backend.setAttribute(OTHER_IO_SESSION, client);
+		}
+	}
+
+	/**
+	 * Closes both sessions of the pair at once instead of waiting for the
+	 * other one to notice. Both sides may get idle at the same time, the
+	 * session with the lower id decides which of them counts the pair.
+	 */
+	private void reap(IoSession session, IoSession otherSession, String reason) {
+		closeReason(session, reason);
+		closeReason(otherSession, reason);
+		IoSession owner = session.getId() < otherSession.getId() ? session : otherSession;
+		if (owner.setAttributeIfAbsent(REAPED, Boolean.TRUE) == null) {
+			metrics.sessionReaped();
+			if (log.isDebugEnabled()) {
+				log.debug("Reaping {} and {}: {}", session, otherSession, reason);
+			}
+		}
+		session.closeNow();
+		otherSession.closeNow();
+	}
+
+	/**
+	 * Closes a session and the other one of its pair at once.
+	 */
+	public static void kill(IoSession session) {
+		closeReason(session, "killed");
+		IoSession otherSession = (IoSession) session.getAttribute(OTHER_IO_SESSION);
+		if (otherSession != null) {
+			closeReason(otherSession, "killed");
+			otherSession.closeNow();
+		}
+		session.closeNow();
+	}
+
+	protected static void closeReason(IoSession session, String reason) {
+		session.setAttributeIfAbsent(CLOSE_REASON, reason);
+	}
+
+	/**
+	 * Accounts the bytes read from the session in the tunnel metrics.
+	 */
+	protected abstract void countReceived(int bytes);
+
+	/**
+	 * Stops reading from the session while the other one can't keep up with
+	 * writing, so the write queue never grows far above the high watermark.
+	 */
+	private void suspendReadIfOverflown(IoSession session, IoSession otherSession) {
+		if (otherSession.getScheduledWriteBytes() > writeHighWatermark) {
+			AtomicBoolean readSuspended = (AtomicBoolean) session.getAttribute(READ_SUSPENDED);
+			synchronized (readSuspended) {
+				if (!readSuspended.compareAndSet(false, true)) {
+					return;
+				}
+				session.suspendRead();
+			}
+
+			// the queue may have been drained before the flag was set
+			if (otherSession.getScheduledWriteBytes() <= writeLowWatermark) {
+				resumeRead(session);
+			}
+		}
+	}
+
+	/**
+	 * Shuts down the output of a session waiting for it once its write queue
+	 * is empty. Runs on both the half-closing and the writing thread, only one
+	 * of them gets the pending flag. The scheduled messages are no measure,
+	 * MINA resets a sent buffer before counting it and never counts it then.
+	 */
+	private void shutdownOutputIfFlushed(IoSession session) {
+		if (session.getScheduledWriteBytes() > 0 || session.removeAttribute(SHUTDOWN_PENDING) == null) {
+			return;
+		}
+		try {
+			((SocketChannel) CHANNEL.get(session)).shutdownOutput();
+		} catch (IOException | IllegalAccessException | IllegalArgumentException | ClassCastException e) {
+			log.debug("Unable to half-close {}", session, e);
+			session.closeNow();
+		}
+	}
+
+	private static Field channelField() {
+		try {
+			Field channel = NioSession.class.getDeclaredField("channel");
+			channel.setAccessible(true);
+			return channel;
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			LoggerFactory.getLogger(AbstractProxyIoHandler.class)
+					.warn("Half-close is not supported, closing both sessions instead", e);
+			return null;
+		}
+	}
+
+	private void resumeRead(IoSession session) {
+		AtomicBoolean readSuspended = (AtomicBoolean) session.getAttribute(READ_SUSPENDED);
+		if (readSuspended == null) {
+			return;
+		}
+		synchronized (readSuspended) {
+			// a throttled session is resumed once it is unthrottled
+			if (readSuspended.compareAndSet(true, false)
+					&& !session.containsAttribute(INPUT_CLOSED)
+					&& !session.containsAttribute(THROTTLED)) {
+				session.resumeRead();
+			}
+		}
+	}
+
+	/**
+	 * MINA sets the read suspended flag of a session and then the interest
+	 * ops of its key from that flag, without a lock. A resume by the thread
+	 * of the other session could interleave with a suspend, leave the reads
+	 * off with the flag cleared and stall the pair for good. Every suspend
+	 * and resume of a proxied session holds this lock.
+	 */
+	private static Object readLock(IoSession session) {
+		Object readSuspended = session.getAttribute(READ_SUSPENDED);
+		return readSuspended != null ? readSuspended : session;
+	}
+
+	/**
+	 * Suspends the reads of a session over its rate. The write watermarks
+	 * leave it suspended until {@link #unthrottleRead(IoSession)}.
+	 *
+	 * @return false if the session was throttled already
+	 */
+	public static boolean throttleRead(IoSession session) {
+		synchronized (readLock(session)) {
+			if (session.setAttributeIfAbsent(THROTTLED, Boolean.TRUE) != null) {
+				return false;
+			}
+			session.suspendRead();
+			return true;
+		}
+	}
+
+	/**
+	 * Resumes the reads of a throttled session unless the other one still
+	 * has a full write queue.
+	 */
+	public static void unthrottleRead(IoSession session) {
+		synchronized (readLock(session)) {
+			session.removeAttribute(THROTTLED);
+			if (session.isConnected() && !session.isClosing()) {
+				resumeReadIfNotBackedUp(session);
+			}
+		}
+	}
+
+	/**
+	 * Resumes reads paused for another reason than a full write queue of the
+	 * other session or the bandwidth filter, those are resumed by the handler
+	 * once the queue drained and by {@link #unthrottleRead(IoSession)}.
+	 */
+	public static void resumeReadIfNotBackedUp(IoSession session) {
+		AtomicBoolean readSuspended = (AtomicBoolean) session.getAttribute(READ_SUSPENDED);
+		synchronized (readLock(session)) {
+			if (session.containsAttribute(INPUT_CLOSED)
+					|| session.containsAttribute(THROTTLED)
+					|| readSuspended != null && readSuspended.get()) {
+				return;
+			}
+			session.resumeRead();
+		}
+	}
+
+	@Override
+	public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+		closeReason(session, cause.toString());
+		// a reset connection is an everyday event, its reason is in the access log
+		if (cause instanceof IOException) {
+			log.debug("Exception caught for {}", session, cause);
+		} else {
+			log.error("Exception caught for {}", session, cause);
+		}
+	}
 }
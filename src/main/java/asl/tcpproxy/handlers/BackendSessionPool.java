@@ -0,0 +1,212 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.handlers;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.future.IoFutureListener;
+import org.apache.mina.core.service.IoConnector;
+import org.apache.mina.core.session.IoSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asl.tcpproxy.backends.Backend;
+import asl.tcpproxy.backends.LoadBalancer;
+
+/**
+ * Keeps already connected idle backend sessions, so a new client can be paired
+ * without waiting for the TCP handshake.
+ * 
+ * The pool tries to hold {@code min} idle sessions. Every client which finds the
+ * pool empty raises the target by one up to {@code max}, every session expired
+ * after {@code maxIdleTime} lowers it back towards {@code min}. The pooled
+ * sessions keep reading, so a backend closing or resetting an idle connection
+ * closes its session before a client could be paired with it. What a backend
+ * sends first is kept by {@link AbstractProxyIoHandler} for the client.
+ */
+public class BackendSessionPool {
+
+	private final static Logger log = LoggerFactory.getLogger(BackendSessionPool.class);
+
+	private final IoConnector connector;
+
+	private final LoadBalancer loadBalancer;
+
+	private final int min;
+
+	private final int max;
+
+	private final long maxIdleTime;
+
+	/** Idle sessions, the most recently connected first */
+	private final ConcurrentLinkedDeque<PooledSession> idle = new ConcurrentLinkedDeque<>();
+
+	private final AtomicInteger available = new AtomicInteger();
+
+	private final AtomicInteger pending = new AtomicInteger();
+
+	private final AtomicInteger target;
+
+	private volatile boolean closed;
+
+	private ScheduledFuture<?> maintenance;
+
+	public BackendSessionPool(IoConnector connector, LoadBalancer loadBalancer, int min, int max, long maxIdleTime) {
+		if (min < 0 || max < min) {
+			throw new IllegalArgumentException(
+					String.format("Wrong backend pool size: min %d, max %d", min, max));
+		}
+		this.connector = connector;
+		this.loadBalancer = loadBalancer;
+		this.min = min;
+		this.max = max;
+		this.maxIdleTime = maxIdleTime;
+		this.target = new AtomicInteger(min);
+	}
+
+	/**
+	 * Fills the pool and schedules the expiry of stale sessions on the given
+	 * scheduler. Without a scheduler the pool is refilled on demand only.
+	 */
+	public void start(ScheduledExecutorService scheduler) {
+		refill();
+		if (scheduler != null) {
+			maintenance = scheduler.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Takes a connected idle session out of the pool.
+	 * 
+	 * @return the session or {@code null} if there is none ready
+	 */
+	public IoSession take() {
+		PooledSession pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			available.decrementAndGet();
+			if (pooled.isUsable(System.currentTimeMillis())) {
+				refill();
+				return pooled.session;
+			}
+			pooled.session.closeNow();
+		}
+
+		// the pool was too small for the load
+		target.updateAndGet(t -> Math.min(t + 1, max));
+		refill();
+		return null;
+	}
+
+	public int available() {
+		return available.get();
+	}
+
+	public void close() {
+		closed = true;
+		if (maintenance != null) {
+			maintenance.cancel(false);
+		}
+
+		PooledSession pooled;
+		while ((pooled = idle.pollFirst()) != null) {
+			available.decrementAndGet();
+			pooled.session.closeNow();
+		}
+	}
+
+	private void maintain() {
+		long now = System.currentTimeMillis();
+
+		Iterator<PooledSession> it = idle.descendingIterator();
+		while (it.hasNext()) {
+			PooledSession pooled = it.next();
+			if (!pooled.isUsable(now) && idle.removeFirstOccurrence(pooled)) {
+				available.decrementAndGet();
+				pooled.session.closeNow();
+				target.updateAndGet(t -> Math.max(t - 1, min));
+			}
+		}
+
+		refill();
+	}
+
+	private void refill() {
+		while (!closed && available.get() + pending.get() < target.get()) {
+			final Backend backend = loadBalancer.select();
+			if (!backend.allowConnect()) {
+				// down, retried by the next maintenance
+				break;
+			}
+			pending.incrementAndGet();
+			final long connectStart = System.nanoTime();
+			connector.connect(backend.getAddress()).addListener(new IoFutureListener<ConnectFuture>() {
+				public void operationComplete(ConnectFuture future) {
+					pending.decrementAndGet();
+					if (future.isConnected()) {
+						IoSession session = future.getSession();
+						backend.succeeded(System.nanoTime() - connectStart);
+						backend.attach(session);
+						if (closed) {
+							session.closeNow();
+						} else {
+							available.incrementAndGet();
+							idle.offerFirst(new PooledSession(session));
+							// notices the backend hanging up, writes wait for the client
+							AbstractProxyIoHandler.resumeReadIfNotBackedUp(session);
+						}
+					} else {
+						backend.failed();
+						if (log.isDebugEnabled()) {
+							// retried by the next maintenance
+							log.debug("Unable to prewarm connection to " + backend, future.getException());
+						}
+					}
+				}
+			});
+		}
+	}
+
+	private class PooledSession {
+
+		final IoSession session;
+
+		final long since = System.currentTimeMillis();
+
+		PooledSession(IoSession session) {
+			this.session = session;
+		}
+
+		boolean isUsable(long now) {
+			// detached as soon as the session is closed
+			Backend backend = Backend.of(session);
+			return backend != null
+					&& backend.isHealthy()
+					&& session.isConnected()
+					&& !session.isClosing()
+					&& now - since < maxIdleTime;
+		}
+	}
+}
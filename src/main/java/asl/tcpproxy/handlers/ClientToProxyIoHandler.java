@@ -19,7 +19,12 @@
  */
 package asl.tcpproxy.handlers;
 
-import java.net.SocketAddress;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.mina.core.RuntimeIoException;
 import org.apache.mina.core.future.ConnectFuture;
@@ -29,6 +34,12 @@ import org.apache.mina.core.session.IoSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import asl.tcpproxy.accesslog.AccessLog;
+import asl.tcpproxy.accesslog.AccessLogRecord;
+import asl.tcpproxy.backends.Backend;
+import asl.tcpproxy.backends.LoadBalancer;
+import asl.tcpproxy.metrics.TunnelMetrics;
+
 /**
  * Handles the client to proxy part of the proxied connection.
  *
@@ -38,51 +49,209 @@ public class ClientToProxyIoHandler extends AbstractProxyIoHandler {
 
 	private final static Logger log = LoggerFactory.getLogger(ClientToProxyIoHandler.class);
 
-	private final ServerToProxyIoHandler connectorHandler = new ServerToProxyIoHandler();
+	/** The backend of the client session, kept for the access log */
+	private static final String BACKEND = ClientToProxyIoHandler.class.getName() + ".Backend";
 
 	private final IoConnector connector;
 
-	private final SocketAddress remoteAddress;
+	private final LoadBalancer loadBalancer;
+
+	private BackendSessionPool backendPool;
+
+	private int connectRetries;
+
+	private long retryBackoffNanos;
+
+	private ScheduledExecutorService scheduler;
+
+	private volatile long connectBudgetNanos;
+
+	private volatile long attemptTimeoutNanos;
+
+	private AccessLog accessLog;
+
+	private int proxyPort;
+
+	/**
+	 * The opened client sessions by id. Opened rather than created, a session
+	 * shed by the event stage gets neither its opening nor its closing.
+	 */
+	private final ConcurrentNavigableMap<Long, IoSession> sessions = new ConcurrentSkipListMap<>();
 
-	public ClientToProxyIoHandler(IoConnector connector, SocketAddress remoteAddress) {
+	public ClientToProxyIoHandler(IoConnector connector,
+			LoadBalancer loadBalancer,
+			boolean copyFreeForwarding,
+			int writeHighWatermark,
+			int writeLowWatermark,
+			IdlePolicy idlePolicy,
+			TunnelMetrics metrics) {
+		super(copyFreeForwarding, writeHighWatermark, writeLowWatermark, idlePolicy, metrics);
 
 		this.connector = connector;
-		this.remoteAddress = remoteAddress;
-		connector.setHandler(connectorHandler);
+		this.loadBalancer = loadBalancer;
+		connector.setHandler(
+				new ServerToProxyIoHandler(copyFreeForwarding,
+						writeHighWatermark,
+						writeLowWatermark,
+						idlePolicy,
+						metrics));
+	}
+
+	/**
+	 * Makes new clients take already connected backend sessions from the pool
+	 * when there are some.
+	 */
+	public void useBackendPool(BackendSessionPool backendPool) {
+		this.backendPool = backendPool;
+	}
+
+	/**
+	 * Makes every closed client session logged to the access log.
+	 */
+	public void useAccessLog(AccessLog accessLog, int proxyPort) {
+		this.accessLog = accessLog;
+		this.proxyPort = proxyPort;
+	}
+
+	/**
+	 * Makes a failed backend connect retried up to connectRetries times, the
+	 * backoff before each retry is a random delay up to retryBackoff
+	 * milliseconds doubled for every attempt.
+	 */
+	public void useRetries(int connectRetries, long retryBackoff, ScheduledExecutorService scheduler) {
+		this.connectRetries = Math.max(0, connectRetries);
+		this.retryBackoffNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, retryBackoff));
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Sets the time a client may wait for its backend in total, all the
+	 * attempts included. Each attempt gets an equal share of it.
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		int attemptTimeout = Math.max(1, connectTimeout / (connectRetries + 1));
+		this.connectBudgetNanos = TimeUnit.MILLISECONDS.toNanos(connectTimeout);
+		this.attemptTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(attemptTimeout);
+		connector.setConnectTimeoutMillis(attemptTimeout);
+	}
+
+	/**
+	 * The opened client sessions with an id above the given one, ordered by
+	 * id. A view, it is not copied.
+	 */
+	public Collection<IoSession> sessionsAfter(long afterId) {
+		return sessions.tailMap(afterId, false).values();
 	}
 
 	@Override
 	public void sessionOpened(final IoSession session) throws Exception {
+		metrics.sessionOpened();
+		sessions.put(session.getId(), session);
+		final long connectStart = System.nanoTime();
 
-		// System.out.println("Connecting...");
-		connector.connect(remoteAddress).addListener(new IoFutureListener<ConnectFuture>() {
+		IoSession pooledSession = backendPool != null ? backendPool.take() : null;
+		if (pooledSession != null) {
+			metrics.pooledConnect();
+			metrics.connected(System.nanoTime() - connectStart);
+			pair(session, pooledSession);
+			return;
+		}
+
+		connect(session, connectStart, 0);
+	}
+
+	private void connect(final IoSession session, final long connectStart, final int attempt) {
+		final Backend backend = loadBalancer.select();
+		if (!backend.allowConnect()) {
+			// known to be down, no need to wait for the timeout
+			metrics.connectFailedFast();
+			retryOrClose(session, connectStart, attempt, null);
+			return;
+		}
+
+		final long attemptStart = System.nanoTime();
+		connector.connect(backend.getAddress()).addListener(new IoFutureListener<ConnectFuture>() {
 			public void operationComplete(ConnectFuture future) {
 				try {
-					future.getSession().setAttribute(OTHER_IO_SESSION, session);
-					session.setAttribute(OTHER_IO_SESSION, future.getSession());
 					IoSession session2 = future.getSession();
-					session2.resumeRead();
-					session2.resumeWrite();
-
-					if (log.isInfoEnabled()) {
-						log.info(String.format("Connection is done! from %s to %s for:",
-								session.getRemoteAddress(),
-								remoteAddress,
-								OTHER_IO_SESSION));
-
-					}
+					long now = System.nanoTime();
+					metrics.connected(now - connectStart);
+					backend.succeeded(now - attemptStart);
+					backend.attach(session2);
+					pair(session, session2);
 
 				} catch (RuntimeIoException e) {
 					// Connect failed
-					if (log.isErrorEnabled()) {
-						log.error("Connect failed for " + OTHER_IO_SESSION, e);
-					}
-					session.closeNow();
-				} finally {
-					session.resumeRead();
-					session.resumeWrite();
+					metrics.connectFailed();
+					backend.failed();
+					retryOrClose(session, connectStart, attempt, e);
 				}
 			}
 		});
 	}
+
+	private void retryOrClose(final IoSession session, final long connectStart, final int attempt,
+			RuntimeIoException cause) {
+		if (attempt < connectRetries && !session.isClosing()) {
+			// full jitter, the clients of a failed backend do not retry in lockstep
+			long backoff = ThreadLocalRandom.current()
+					.nextLong((retryBackoffNanos << Math.min(attempt, 16)) + 1);
+			long elapsed = System.nanoTime() - connectStart;
+			if (elapsed + backoff + attemptTimeoutNanos <= connectBudgetNanos) {
+				metrics.connectRetried();
+				Runnable retry = () -> connect(session, connectStart, attempt + 1);
+				if (scheduler != null) {
+					scheduler.schedule(retry, backoff, TimeUnit.NANOSECONDS);
+				} else {
+					retry.run();
+				}
+				return;
+			}
+		}
+
+		// counted in the metrics and logged by the access log
+		log.debug("Connect failed for {} after {} attempts", session.getRemoteAddress(), attempt + 1, cause);
+		closeReason(session, cause != null ? "connect failed" : "backend down");
+		session.closeNow();
+		session.resumeRead();
+		session.resumeWrite();
+	}
+
+	private void pair(IoSession session, IoSession session2) {
+		try {
+			pairBackend(session2, session);
+			session.setAttribute(OTHER_IO_SESSION, session2);
+			session2.resumeRead();
+			session2.resumeWrite();
+			session.setAttribute(BACKEND, Backend.of(session2));
+
+			log.debug("Paired {} with {}", session, session2);
+		} finally {
+			session.resumeRead();
+			session.resumeWrite();
+		}
+	}
+
+	@Override
+	public void sessionClosed(IoSession session) throws Exception {
+		metrics.sessionClosed();
+		sessions.remove(session.getId());
+		if (accessLog != null) {
+			long start = session.getCreationTime();
+			accessLog.log(new AccessLogRecord(start,
+					proxyPort,
+					session.getRemoteAddress(),
+					session.getAttribute(BACKEND),
+					session.getReadBytes(),
+					session.getWrittenBytes(),
+					System.currentTimeMillis() - start,
+					(String) session.getAttribute(CLOSE_REASON, "client closed")));
+		}
+		super.sessionClosed(session);
+	}
+
+	@Override
+	protected void countReceived(int bytes) {
+		metrics.clientBytesReceived(bytes);
+	}
 }
@@ -0,0 +1,92 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.handlers;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.session.IdleStatus;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.session.IoSessionConfig;
+
+/**
+ * When a pair of proxied sessions is closed for being idle or too old.
+ * 
+ * All the times are in seconds, 0 disables the check.
+ */
+public class IdlePolicy {
+
+	/**
+	 * Silence after which the read buffer of a session is reset to the min.
+	 * Fixed, it never closes a session, only the max lifetime is checked then.
+	 */
+	static final int BUFFER_RESET_IDLE_TIME = 10;
+
+	/** Neither side of the pair read anything for that long */
+	private final int readIdleTime;
+
+	/** Neither side of the pair wrote anything for that long */
+	private final int writeIdleTime;
+
+	/** The pair is closed that long after it was connected regardless of traffic */
+	private final long maxLifetimeMillis;
+
+	public IdlePolicy(int readIdleTime, int writeIdleTime, int maxLifetime) {
+		this.readIdleTime = readIdleTime;
+		this.writeIdleTime = writeIdleTime;
+		this.maxLifetimeMillis = TimeUnit.SECONDS.toMillis(maxLifetime);
+	}
+
+	/**
+	 * Makes MINA fire the idle events the policy and the read buffer sizing
+	 * rely on.
+	 */
+	public void apply(IoSessionConfig config) {
+		config.setIdleTime(IdleStatus.BOTH_IDLE, BUFFER_RESET_IDLE_TIME);
+		config.setIdleTime(IdleStatus.READER_IDLE, readIdleTime);
+		config.setIdleTime(IdleStatus.WRITER_IDLE, writeIdleTime);
+	}
+
+	/**
+	 * @return true when the session reported idle has to be closed together
+	 *         with the other session of the pair
+	 */
+	boolean isExpired(IoSession session, IoSession otherSession, IdleStatus status, long now) {
+		if (isTooOld(session, now)) {
+			return true;
+		}
+		if (status == IdleStatus.READER_IDLE && readIdleTime > 0) {
+			// the event is about this side only, the pair is idle when the
+			// other side is silent too
+			return now - otherSession.getLastReadTime() >= TimeUnit.SECONDS.toMillis(readIdleTime);
+		}
+		if (status == IdleStatus.WRITER_IDLE && writeIdleTime > 0) {
+			return now - otherSession.getLastWriteTime() >= TimeUnit.SECONDS.toMillis(writeIdleTime);
+		}
+		return false;
+	}
+
+	/**
+	 * Checked on every read with the time MINA has already taken for it, so
+	 * it costs no clock call.
+	 */
+	boolean isTooOld(IoSession session, long now) {
+		return maxLifetimeMillis > 0 && now - session.getCreationTime() >= maxLifetimeMillis;
+	}
+}
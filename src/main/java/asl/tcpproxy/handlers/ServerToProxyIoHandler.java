@@ -19,10 +19,38 @@
  */
 package asl.tcpproxy.handlers;
 
+import org.apache.mina.core.session.IoSession;
+
+import asl.tcpproxy.backends.Backend;
+import asl.tcpproxy.metrics.TunnelMetrics;
+
 /**
  * Handles the server to proxy part of the proxied connection.
  *
  * @author <a href="http://mina.apache.org">Apache MINA Project</a>
  */
 public class ServerToProxyIoHandler extends AbstractProxyIoHandler {
+
+	public ServerToProxyIoHandler(boolean copyFreeForwarding,
+			int writeHighWatermark,
+			int writeLowWatermark,
+			IdlePolicy idlePolicy,
+			TunnelMetrics metrics) {
+		super(copyFreeForwarding, writeHighWatermark, writeLowWatermark, idlePolicy, metrics);
+	}
+
+	@Override
+	public void sessionClosed(IoSession session) throws Exception {
+		Backend.detach(session);
+		IoSession client = (IoSession) session.getAttribute(OTHER_IO_SESSION);
+		if (client != null) {
+			closeReason(client, "backend closed");
+		}
+		super.sessionClosed(session);
+	}
+
+	@Override
+	protected void countReceived(int bytes) {
+		metrics.backendBytesReceived(bytes);
+	}
 }
@@ -0,0 +1,299 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.metrics;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * Point in time values of {@link TunnelMetrics}. Serialized as is by the
+ * metrics endpoint.
+ */
+public class MetricsSnapshot {
+
+    long activeSessions;
+
+    long acceptedConnections;
+
+    long rejectedConnections;
+
+    long queuedConnections;
+
+    long limitedConnections;
+
+    long queueTimeouts;
+
+    long connectFailures;
+
+    long fastFailures;
+
+    long connectRetries;
+
+    long pooledConnects;
+
+    long reapedSessions;
+
+    long throttledReads;
+
+    long tunnelBandwidth;
+
+    long clientBandwidth;
+
+    long bytesIn;
+
+    long bytesOut;
+
+    boolean bytesCounted = true;
+
+    long messagesIn;
+
+    long messagesOut;
+
+    double messagesPerSecond;
+
+    long[] connectLatency = new long[LatencyHistogram.BOUNDS.length + 1];
+
+    long connectLatencyNanos;
+
+    Map<String, String> backends = Collections.emptyMap();
+
+    long readBufferBytes;
+
+    long readBufferSessions;
+
+    long eventThreads;
+
+    long queuedEvents;
+
+    long shedSessions;
+
+    /**
+     * Adds the snapshots up, e.g. to get the totals over all the tunnels.
+     */
+    public static MetricsSnapshot sum(Collection<MetricsSnapshot> snapshots) {
+        MetricsSnapshot sum = new MetricsSnapshot();
+
+        for (MetricsSnapshot s : snapshots) {
+            sum.activeSessions += s.activeSessions;
+            sum.acceptedConnections += s.acceptedConnections;
+            sum.rejectedConnections += s.rejectedConnections;
+            sum.queuedConnections += s.queuedConnections;
+            sum.limitedConnections += s.limitedConnections;
+            sum.queueTimeouts += s.queueTimeouts;
+            sum.connectFailures += s.connectFailures;
+            sum.fastFailures += s.fastFailures;
+            sum.connectRetries += s.connectRetries;
+            sum.pooledConnects += s.pooledConnects;
+            sum.reapedSessions += s.reapedSessions;
+            sum.throttledReads += s.throttledReads;
+            sum.bytesIn += s.bytesIn;
+            sum.bytesOut += s.bytesOut;
+            sum.bytesCounted &= s.bytesCounted;
+            sum.messagesIn += s.messagesIn;
+            sum.messagesOut += s.messagesOut;
+            sum.messagesPerSecond += s.messagesPerSecond;
+            for (int i = 0; i < sum.connectLatency.length; i++) {
+                sum.connectLatency[i] += s.connectLatency[i];
+            }
+            sum.connectLatencyNanos += s.connectLatencyNanos;
+            sum.readBufferBytes += s.readBufferBytes;
+            sum.readBufferSessions += s.readBufferSessions;
+            sum.eventThreads += s.eventThreads;
+            sum.queuedEvents += s.queuedEvents;
+            sum.shedSessions += s.shedSessions;
+        }
+
+        return sum;
+    }
+
+    public long getActiveSessions() {
+        return activeSessions;
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections;
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections;
+    }
+
+    public long getQueuedConnections() {
+        return queuedConnections;
+    }
+
+    public long getLimitedConnections() {
+        return limitedConnections;
+    }
+
+    public long getQueueTimeouts() {
+        return queueTimeouts;
+    }
+
+    public long getConnectFailures() {
+        return connectFailures;
+    }
+
+    public long getFastFailures() {
+        return fastFailures;
+    }
+
+    public long getConnectRetries() {
+        return connectRetries;
+    }
+
+    public long getPooledConnects() {
+        return pooledConnects;
+    }
+
+    public long getReapedSessions() {
+        return reapedSessions;
+    }
+
+    public long getThrottledReads() {
+        return throttledReads;
+    }
+
+    /**
+     * Current bytes per second limit of the tunnel, 0 means unlimited.
+     */
+    public long getTunnelBandwidth() {
+        return tunnelBandwidth;
+    }
+
+    /**
+     * Current bytes per second limit of a client, 0 means unlimited.
+     */
+    public long getClientBandwidth() {
+        return clientBandwidth;
+    }
+
+    public void setBandwidth(long tunnelBandwidth, long clientBandwidth) {
+        this.tunnelBandwidth = tunnelBandwidth;
+        this.clientBandwidth = clientBandwidth;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * False when the engine forwards without counting, the splice engine.
+     * The bytes then only hold what passed the proxy before splicing started.
+     */
+    public boolean isBytesCounted() {
+        return bytesCounted;
+    }
+
+    public void setBytesCounted(boolean bytesCounted) {
+        this.bytesCounted = bytesCounted;
+    }
+
+    public long getMessagesIn() {
+        return messagesIn;
+    }
+
+    public long getMessagesOut() {
+        return messagesOut;
+    }
+
+    public double getMessagesPerSecond() {
+        return messagesPerSecond;
+    }
+
+    public Map<String, Long> getConnectLatency() {
+        return LatencyHistogram.labeled(connectLatency);
+    }
+
+    /**
+     * State of every backend of the tunnel. Empty for the totals.
+     */
+    public Map<String, String> getBackends() {
+        return backends;
+    }
+
+    public void setBackends(Map<String, String> backends) {
+        this.backends = backends;
+    }
+
+    /**
+     * Accounts the current read buffer size of the sessions.
+     */
+    public void addReadBuffers(Collection<IoSession> sessions) {
+        for (IoSession session : sessions) {
+            readBufferBytes += session.getConfig().getReadBufferSize();
+            readBufferSessions++;
+        }
+    }
+
+    /**
+     * Sum of the current read buffer sizes of all the sessions.
+     */
+    public long getReadBufferBytes() {
+        return readBufferBytes;
+    }
+
+    public long getReadBufferAvgSize() {
+        return readBufferSessions == 0 ? 0 : readBufferBytes / readBufferSessions;
+    }
+
+    public void setEventExecutor(long threads, long queued, long shed) {
+        this.eventThreads = threads;
+        this.queuedEvents = queued;
+        this.shedSessions = shed;
+    }
+
+    /**
+     * Running threads of the event stage, 0 without it.
+     */
+    public long getEventThreads() {
+        return eventThreads;
+    }
+
+    /**
+     * Session events waiting for the event threads.
+     */
+    public long getQueuedEvents() {
+        return queuedEvents;
+    }
+
+    /**
+     * New sessions closed because the event queue was full.
+     */
+    public long getShedSessions() {
+        return shedSessions;
+    }
+
+    public double getConnectLatencyAvgMillis() {
+        long count = 0;
+        for (long c : connectLatency) {
+            count += c;
+        }
+        return count == 0 ? 0 : (double) connectLatencyNanos / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live counters of a single tunnel.
+ * 
+ * All the updates are lock free, so they can be called from the forwarding
+ * path. Only taking a {@link #snapshot()} and sampling the rate are
+ * synchronized.
+ */
+public class TunnelMetrics {
+
+    private final LongAdder activeSessions = new LongAdder();
+
+    private final LongAdder acceptedConnections = new LongAdder();
+
+    private final LongAdder rejectedConnections = new LongAdder();
+
+    private final LongAdder queuedConnections = new LongAdder();
+
+    private final LongAdder limitedConnections = new LongAdder();
+
+    private final LongAdder queueTimeouts = new LongAdder();
+
+    private final LongAdder connectFailures = new LongAdder();
+
+    private final LongAdder fastFailures = new LongAdder();
+
+    private final LongAdder connectRetries = new LongAdder();
+
+    private final LongAdder pooledConnects = new LongAdder();
+
+    private final LongAdder reapedSessions = new LongAdder();
+
+    private final LongAdder throttledReads = new LongAdder();
+
+    private final LongAdder bytesIn = new LongAdder();
+
+    private final LongAdder bytesOut = new LongAdder();
+
+    private final LongAdder messagesIn = new LongAdder();
+
+    private final LongAdder messagesOut = new LongAdder();
+
+    private final LatencyHistogram connectLatency = new LatencyHistogram();
+
+    private long rateTime = System.nanoTime();
+
+    private long rateMessages;
+
+    private volatile double messagesPerSecond;
+
+    public void sessionOpened() {
+        acceptedConnections.increment();
+        activeSessions.increment();
+    }
+
+    public void sessionClosed() {
+        activeSessions.decrement();
+    }
+
+    public void connectionRejected() {
+        rejectedConnections.increment();
+    }
+
+    /**
+     * A connection over the limits of the tunnel waits in the queue.
+     */
+    public void connectionQueued() {
+        queuedConnections.increment();
+    }
+
+    /**
+     * A connection over the limits of the tunnel was closed at once.
+     */
+    public void connectionLimited() {
+        limitedConnections.increment();
+    }
+
+    /**
+     * A queued connection was closed as it didn't fit the limits in time.
+     */
+    public void queueTimedOut() {
+        queueTimeouts.increment();
+    }
+
+    public void connected(long latencyNanos) {
+        connectLatency.record(latencyNanos);
+    }
+
+    public void connectFailed() {
+        connectFailures.increment();
+    }
+
+    /**
+     * A connect was not tried as the backend is known to be down.
+     */
+    public void connectFailedFast() {
+        fastFailures.increment();
+    }
+
+    /**
+     * A client tries another connect after a failed one.
+     */
+    public void connectRetried() {
+        connectRetries.increment();
+    }
+
+    /**
+     * A client got an already connected backend session from the pool.
+     */
+    public void pooledConnect() {
+        pooledConnects.increment();
+    }
+
+    /**
+     * A pair was closed by the idle policy of the tunnel.
+     */
+    public void sessionReaped() {
+        reapedSessions.increment();
+    }
+
+    /**
+     * A session stopped reading for going over the bandwidth.
+     */
+    public void readThrottled() {
+        throttledReads.increment();
+    }
+
+    /**
+     * Bytes read from the client and forwarded to the backend.
+     */
+    public void clientBytesReceived(int bytes) {
+        bytesIn.add(bytes);
+        messagesIn.increment();
+    }
+
+    /**
+     * Bytes read from the backend and forwarded to the client.
+     */
+    public void backendBytesReceived(int bytes) {
+        bytesOut.add(bytes);
+        messagesOut.increment();
+    }
+
+    public synchronized MetricsSnapshot snapshot() {
+        MetricsSnapshot snapshot = new MetricsSnapshot();
+
+        snapshot.activeSessions = activeSessions.sum();
+        snapshot.acceptedConnections = acceptedConnections.sum();
+        snapshot.rejectedConnections = rejectedConnections.sum();
+        snapshot.queuedConnections = queuedConnections.sum();
+        snapshot.limitedConnections = limitedConnections.sum();
+        snapshot.queueTimeouts = queueTimeouts.sum();
+        snapshot.connectFailures = connectFailures.sum();
+        snapshot.fastFailures = fastFailures.sum();
+        snapshot.connectRetries = connectRetries.sum();
+        snapshot.pooledConnects = pooledConnects.sum();
+        snapshot.reapedSessions = reapedSessions.sum();
+        snapshot.throttledReads = throttledReads.sum();
+        snapshot.bytesIn = bytesIn.sum();
+        snapshot.bytesOut = bytesOut.sum();
+        snapshot.messagesIn = messagesIn.sum();
+        snapshot.messagesOut = messagesOut.sum();
+        snapshot.connectLatency = connectLatency.counts();
+        snapshot.connectLatencyNanos = connectLatency.totalNanos();
+        snapshot.messagesPerSecond = messagesPerSecond;
+
+        return snapshot;
+    }
+
+    /**
+     * Closes the current rate window, called once a second by the scheduler.
+     * Every snapshot reports the rate of the last closed window, so the
+     * dashboard and the API polling at the same time see the same rate.
+     */
+    public synchronized void sampleRate() {
+        long now = System.nanoTime();
+        long elapsed = now - rateTime;
+        long messages = messagesIn.sum() + messagesOut.sum();
+
+        if (elapsed > 0) {
+            messagesPerSecond = (messages - rateMessages) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+            rateMessages = messages;
+            rateTime = now;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.services;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.context.properties.source.ConfigurationPropertySources;
+import org.springframework.boot.env.YamlPropertySourceLoader;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.PropertySource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.stereotype.Service;
+
+import asl.tcpproxy.AppConfig;
+
+/**
+ * Watches the {@code configFile} and reloads the tunnels whenever it changes.
+ */
+@Service
+public class ConfigReloadService {
+
+    private static Logger log = LoggerFactory.getLogger(ConfigReloadService.class);
+
+    AppConfig config;
+
+    TunnelsService tunnelsService;
+
+    /** What the application started with, under the reloaded file */
+    ConfigurableEnvironment environment;
+
+    ScheduledExecutorService watcher;
+
+    Path configFile;
+
+    long lastModified;
+
+    public ConfigReloadService(AppConfig config, TunnelsService tunnelsService, ConfigurableEnvironment environment) {
+        this.config = config;
+        this.tunnelsService = tunnelsService;
+        this.environment = environment;
+    }
+
+    @PostConstruct
+    private void init() throws IOException {
+        if (config.getConfigFile() == null || config.getConfigFile().trim().isEmpty()) {
+            return;
+        }
+
+        configFile = Paths.get(config.getConfigFile().trim());
+        lastModified = Files.getLastModifiedTime(configFile).toMillis();
+
+        watcher = Executors.newSingleThreadScheduledExecutor();
+        watcher.scheduleWithFixedDelay(this::checkForChanges,
+                config.getConfigReloadInterval(),
+                config.getConfigReloadInterval(),
+                TimeUnit.MILLISECONDS);
+
+        log.info("Watching {} for configuration changes", configFile);
+    }
+
+    @PreDestroy
+    private void close() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+        }
+    }
+
+    private void checkForChanges() {
+        try {
+            long modified = Files.getLastModifiedTime(configFile).toMillis();
+            if (modified != lastModified) {
+                lastModified = modified;
+                reload();
+            }
+        } catch (Exception e) {
+            // keep the running configuration, the next change is tried again
+            log.error(String.format("Unable to reload configuration from %s", configFile), e);
+        }
+    }
+
+    void reload() throws IOException {
+        AppConfig reloaded = load();
+
+        // fails on a wrong white list before anything is changed
+        reloaded.getClientWhiteListSubnets();
+
+        config.update(reloaded);
+        tunnelsService.reload();
+
+        log.info("Configuration reloaded from {}", configFile);
+    }
+
+    /**
+     * Binds the file over the property sources the application started with.
+     * A key missing from the file keeps its value, e.g. from the command line,
+     * the environment or a profile, instead of falling back to the default.
+     */
+    private AppConfig load() throws IOException {
+        List<PropertySource<?>> sources = new ArrayList<>(new YamlPropertySourceLoader().load(configFile.toString(),
+                new FileSystemResource(configFile.toFile())));
+        environment.getPropertySources().forEach(sources::add);
+
+        Binder binder = new Binder(ConfigurationPropertySources.from(sources));
+        AppConfig reloaded = binder.bind("", Bindable.ofInstance(new AppConfig(Optional.empty())))
+                .orElseGet(() -> new AppConfig(Optional.empty()));
+        reloaded.mergeTunnelSettings(binder);
+        return reloaded;
+    }
+}
@@ -25,6 +25,8 @@ import java.util.Map;
 import org.springframework.stereotype.Service;
 
 import asl.tcpproxy.AppConfig;
+import asl.tcpproxy.buffers.BufferPoolSnapshot;
+import asl.tcpproxy.metrics.MetricsSnapshot;
 
 @Service
 public class StatusService {
@@ -54,6 +56,25 @@ public class StatusService {
         return tunnelsService.status();
     }
     
+    public Map<String, MetricsSnapshot> tunnelMetrics() {
+        return tunnelsService.metrics();
+    }
+
+    public BufferPoolSnapshot bufferPoolMetrics() {
+        return tunnelsService.bufferPoolMetrics();
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, MetricsSnapshot> tunnelMetrics = tunnelMetrics();
+
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("global", MetricsSnapshot.sum(tunnelMetrics.values()));
+        metrics.put("tunnels", tunnelMetrics);
+        metrics.put("buffers", bufferPoolMetrics());
+
+        return metrics;
+    }
+
     public String appVersion() {
         return config.appVersion();
     }
@@ -18,24 +18,76 @@
  */
 package asl.tcpproxy.services;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.SimpleBufferAllocator;
+import org.apache.mina.core.service.SimpleIoProcessorPool;
+import org.apache.mina.transport.socket.nio.NioProcessor;
+import org.apache.mina.transport.socket.nio.NioSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
 
 import asl.tcpproxy.AppConfig;
+import asl.tcpproxy.accesslog.AccessLog;
+import asl.tcpproxy.buffers.BufferPoolSnapshot;
+import asl.tcpproxy.buffers.PooledBufferAllocator;
+import asl.tcpproxy.filters.Cidr;
+import asl.tcpproxy.metrics.MetricsSnapshot;
+import asl.tcpproxy.tunnels.SessionInfo;
 import asl.tcpproxy.tunnels.Tunnel;
 
 @Service
 public class TunnelsService {
 
+	private static Logger log = LoggerFactory.getLogger(TunnelsService.class);
+
 	AppConfig config;
 
-	List<Tunnel> tunnels;
+	/** Replaced as a whole on reload */
+	volatile List<Tunnel> tunnels;
+
+	/**
+	 * Runs the shared processor loops, plus the acceptor loop of every tunnel
+	 * and its connector loop while connects are pending. So it still grows
+	 * with the tunnels. Unbounded, a rejected acceptor loop would leave its
+	 * tunnel without accepts.
+	 */
+	ExecutorService ioExecutor;
+
+	/** Selector loops shared by all the tunnels */
+	SimpleIoProcessorPool<NioSession> ioProcessorPool;
+
+	/** Background tasks of the tunnels, e.g. refilling the backend pools */
+	ScheduledExecutorService scheduler;
+
+	/** Opens the tunnels off the Spring startup thread, a few at a time */
+	ExecutorService startupExecutor;
+
+	/** Runs the blocking DNS lookups of the backend refreshes */
+	ExecutorService resolverExecutor;
+
+	/** null when disabled */
+	AccessLog accessLog;
+
+	/** The IoBuffer allocator of all the MINA tunnels, null when disabled */
+	PooledBufferAllocator bufferAllocator;
 
 	public TunnelsService(AppConfig config) {
         this.config = config;
@@ -43,22 +95,246 @@ public class TunnelsService {
 
     @PostConstruct
 	private void init() {
-		tunnels = config.getTunnels().parallelStream().map(tunnelDesc -> createTunnel(tunnelDesc)).collect(Collectors.toList());
+		// before any session allocates a buffer
+		if (config.getBufferPool().isEnabled()) {
+			bufferAllocator = new PooledBufferAllocator(config.getBufferPool());
+			IoBuffer.setAllocator(bufferAllocator);
+			IoBuffer.setUseDirectBuffer(config.getBufferPool().isDirect());
+		}
+
+		ioExecutor = Executors.newCachedThreadPool(daemonThreads("mina-io"));
+		// no selector provider, the processors open the default one
+		ioProcessorPool = new SimpleIoProcessorPool<>(NioProcessor.class, ioExecutor, config.ioProcessorCount(), null);
+		scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("tunnel-scheduler"));
+		startupExecutor = Executors.newFixedThreadPool(Math.max(1, config.getStartupThreads()),
+				daemonThreads("tunnel-startup"));
+		resolverExecutor = Executors.newCachedThreadPool(daemonThreads("dns-resolver"));
+		if (!config.getAccessLogFile().isEmpty()) {
+			accessLog = new AccessLog(config.getAccessLogFile(),
+					config.getAccessLogBufferSize(),
+					config.getAccessLogMaxFileSize(),
+					config.getAccessLogMaxFiles());
+			try {
+				accessLog.start();
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to open the access log " + config.getAccessLogFile(), e);
+			}
+		}
+
+		// the dashboard is up before the tunnels
+		tunnels = config.getTunnels().stream().map(tunnelDesc -> createTunnel(tunnelDesc)).collect(Collectors.toList());
+		// one rate window for all the readers of the metrics
+		scheduler.scheduleAtFixedRate(this::sampleRates, 1, 1, TimeUnit.SECONDS);
 	}
     
     @PreDestroy
     private void close() {
+        startupExecutor.shutdownNow();
         tunnels.forEach(tunnel -> tunnel.close());
+        Tunnel.shutdownSharedEngines();
+        scheduler.shutdownNow();
+        resolverExecutor.shutdownNow();
+        if (accessLog != null) {
+            // after the tunnels, so the records of their sessions are written
+            accessLog.close();
+        }
+        ioProcessorPool.dispose();
+        ioExecutor.shutdown();
+        if (bufferAllocator != null) {
+            IoBuffer.setAllocator(new SimpleBufferAllocator());
+            bufferAllocator.clear();
+        }
     }
     
     public Map<String, String> status() {
         return tunnels.stream().collect(Collectors.toMap(t -> t.descriptor(), t -> t.toString()));
     }
 
+    public Map<String, MetricsSnapshot> metrics() {
+        return tunnels.stream().collect(Collectors.toMap(t -> t.descriptor(), t -> t.metricsSnapshot()));
+    }
+
+    private void sampleRates() {
+        // a replaced tunnel hands its metrics over, the current ones have them all
+        tunnels.forEach(t -> t.getMetrics().sampleRate());
+    }
+
+    /**
+     * Brings the running tunnels in line with the current configuration.
+     * 
+     * Tunnels which did not change keep running and just pick up the new white
+     * list and connect timeout. Changed and removed tunnels stop listening, but
+     * their established sessions run until they end. New and changed tunnels
+     * are opened.
+     */
+    public synchronized void reload() {
+        Cidr[] clientWhiteList = config.getClientWhiteListSubnets();
+
+        Map<Integer, Tunnel> running = new HashMap<>();
+        List<Tunnel> obsolete = new ArrayList<>();
+        for (Tunnel tunnel : tunnels) {
+            if (running.putIfAbsent(tunnel.getProxyPort(), tunnel) != null) {
+                obsolete.add(tunnel);
+            }
+        }
+
+        List<Tunnel> reloaded = new ArrayList<>();
+        for (String tunnelDesc : config.getTunnels()) {
+            Tunnel candidate = newTunnel(tunnelDesc, clientWhiteList);
+            Tunnel current = running.remove(candidate.getProxyPort());
+
+            if (current != null && current.isActive() && current.sameAs(candidate)) {
+                current.update(config.getConnectTimeout(), clientWhiteList);
+                current.setBandwidth(candidate.getSettings().getTunnelBandwidth(),
+                        candidate.getSettings().getClientBandwidth());
+                reloaded.add(current);
+            } else {
+                if (current != null) {
+                    // the sessions left running go on counting in the totals
+                    candidate.useMetrics(current.getMetrics());
+                    // frees the port for the candidate
+                    current.closeKeepingSessions();
+                    log.info("Tunnel {} is replaced by {}", current.descriptor(), candidate.descriptor());
+                }
+                openAsync(candidate, 0);
+                reloaded.add(candidate);
+            }
+        }
+
+        obsolete.addAll(running.values());
+        for (Tunnel tunnel : obsolete) {
+            tunnel.closeKeepingSessions();
+            log.info("Tunnel {} is removed", tunnel.descriptor());
+        }
+
+        tunnels = reloaded;
+    }
+
+    /**
+     * @return null when the buffers are not pooled
+     */
+    public BufferPoolSnapshot bufferPoolMetrics() {
+        return bufferAllocator != null ? bufferAllocator.snapshot() : null;
+    }
+
+    /**
+     * Changes the bandwidth of the running tunnel until the next change of the
+     * configuration file.
+     *
+     * @return false if there is no tunnel on the port
+     */
+    public boolean setBandwidth(int proxyPort, long tunnelBandwidth, long clientBandwidth) {
+        if (tunnelBandwidth < 0 || clientBandwidth < 0) {
+            throw new IllegalArgumentException("Negative bandwidth " + tunnelBandwidth + ", " + clientBandwidth);
+        }
+        Optional<Tunnel> tunnel = findTunnel(proxyPort);
+
+        tunnel.ifPresent(t -> {
+            t.setBandwidth(tunnelBandwidth, clientBandwidth);
+            log.info("Bandwidth of tunnel {} is set to {} B/s, {} B/s per client",
+                    t.descriptor(),
+                    tunnelBandwidth,
+                    clientBandwidth);
+        });
+        return tunnel.isPresent();
+    }
+
+    /**
+     * A page of the live client sessions of a tunnel ordered by id, the next
+     * page starts after the last id of this one.
+     *
+     * @return empty if there is no tunnel on the port
+     */
+    public Optional<List<SessionInfo>> sessions(int proxyPort, long afterId, int limit) {
+        return findTunnel(proxyPort).map(tunnel -> tunnel.sessions(afterId, limit));
+    }
+
+    /**
+     * Closes a client session of a tunnel together with its backend session.
+     *
+     * @return false if there is no such tunnel or live session
+     */
+    public boolean kill(int proxyPort, long sessionId) {
+        boolean killed = findTunnel(proxyPort).map(tunnel -> tunnel.kill(sessionId)).orElse(false);
+        if (killed) {
+            log.info("Session {} of the tunnel on port {} is killed", sessionId, proxyPort);
+        }
+        return killed;
+    }
+
+    private Optional<Tunnel> findTunnel(int proxyPort) {
+        return tunnels.stream()
+                .filter(t -> t.getProxyPort() == proxyPort)
+                .findFirst();
+    }
+
 	private Tunnel createTunnel(String tunnelDesc) {
-		Tunnel tunnel = new Tunnel(tunnelDesc, config.getConnectTimeout(), config.getClientWhiteListAddresses());
+		Tunnel tunnel = newTunnel(tunnelDesc, config.getClientWhiteListSubnets());
+
+		openAsync(tunnel, 0);
+
+		return tunnel;
+	}
+
+	/**
+	 * Opens the tunnel on the startup executor. A failed bind is repeated
+	 * with a growing delay, e.g. until a previous instance frees the port. A
+	 * malformed descriptor or a wrong setting fails at once.
+	 */
+	private void openAsync(Tunnel tunnel, int attempt) {
+		if (startupExecutor.isShutdown()) {
+			return;
+		}
+		startupExecutor.execute(() -> {
+			if (!isCurrent(tunnel)) {
+				return;
+			}
+
+			tunnel.open();
+
+			if (tunnel.isActive()) {
+				synchronized (this) {
+					// replaced by a reload while opening
+					if (!isCurrent(tunnel)) {
+						tunnel.closeKeepingSessions();
+					}
+				}
+			} else if (tunnel.isRetryable() && attempt < config.getBindRetries()) {
+				long delay = Math.min(config.getBindRetryDelay() << Math.min(attempt, 20),
+						config.getBindRetryMaxDelay());
+				log.warn("{}, retry {} of {} in {} ms", tunnel, attempt + 1, config.getBindRetries(), delay);
+				scheduler.schedule(() -> openAsync(tunnel, attempt + 1), delay, TimeUnit.MILLISECONDS);
+			}
+		});
+	}
+
+	/**
+	 * Whether the tunnel is still one of the running set. Before the first
+	 * tunnel list is assigned all of them are.
+	 */
+	private boolean isCurrent(Tunnel tunnel) {
+		List<Tunnel> current = tunnels;
+		return current == null || current.contains(tunnel);
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
 
-		tunnel.open();
+	private Tunnel newTunnel(String tunnelDesc, Cidr[] clientWhiteList) {
+		Tunnel tunnel = new Tunnel(tunnelDesc,
+				config.getConnectTimeout(),
+				clientWhiteList,
+				config.isCopyFreeForwarding());
+		tunnel.setSettings(config.settingsFor(tunnel.getProxyPort()));
+		tunnel.useSharedIo(ioExecutor, ioProcessorPool, scheduler);
+		tunnel.useResolver(resolverExecutor);
+		tunnel.useAccessLog(accessLog);
 
 		return tunnel;
 	}
@@ -0,0 +1,434 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.tunnels;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asl.tcpproxy.accesslog.AccessLogRecord;
+import asl.tcpproxy.backends.Backend;
+import asl.tcpproxy.backends.LoadBalancer;
+import asl.tcpproxy.filters.Cidr;
+import asl.tcpproxy.filters.CidrMatcher;
+
+/**
+ * Forwards with blocking sockets and a virtual thread per direction. There is
+ * no selector and no suspending of reads: a direction simply blocks in write
+ * while the other side is slow.
+ * 
+ * Built for Java 8, the virtual thread factory is looked up reflectively. A
+ * platform thread per direction doesn't scale, so older runtimes use MINA
+ * instead, see {@link #isAvailable()}.
+ */
+class BlockingEngine implements TunnelEngine {
+
+    private static Logger log = LoggerFactory.getLogger(BlockingEngine.class);
+
+    /** null before Java 21 */
+    private static final ThreadFactory THREADS = virtualThreadFactory();
+
+    /** First wait after a failed accept, doubled up to the max */
+    private static final long ACCEPT_BACKOFF = 10;
+
+    private static final long ACCEPT_MAX_BACKOFF = 1000;
+
+    private final Tunnel tunnel;
+
+    private final TunnelSettings settings;
+
+    private volatile int connectTimeout;
+
+    /** null lets everybody in */
+    private volatile CidrMatcher clientWhiteList;
+
+    private LoadBalancer loadBalancer;
+
+    private ServerSocketChannel serverChannel;
+
+    /** Client and backend sockets of the running pairs */
+    private final Set<SocketChannel> channels = ConcurrentHashMap.newKeySet();
+
+    /** The running pairs ordered by their id, changed once per session only */
+    private final ConcurrentNavigableMap<Long, Pair> pairs = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong pairIds = new AtomicLong();
+
+    BlockingEngine(Tunnel tunnel) {
+        this.tunnel = tunnel;
+        this.settings = tunnel.settings;
+        this.connectTimeout = tunnel.connectTimeout;
+        this.clientWhiteList = matcherOf(tunnel.clientWhiteList);
+    }
+
+    /**
+     * Whether the runtime has virtual threads.
+     */
+    static boolean isAvailable() {
+        return THREADS != null;
+    }
+
+    /**
+     * {@code Thread.ofVirtual().factory()}. Preview only and failing without
+     * --enable-preview on Java 19 and 20.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void start(int proxyPort, LoadBalancer loadBalancer) throws IOException {
+        this.loadBalancer = loadBalancer;
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            Integer backlog = settings.getSocket().effectiveBacklog();
+            serverChannel.bind(new InetSocketAddress(proxyPort), backlog != null ? backlog : 0);
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+        this.serverChannel = serverChannel;
+
+        THREADS.newThread(this::accept).start();
+    }
+
+    @Override
+    public void update(int connectTimeout, Cidr[] clientWhiteList) {
+        this.connectTimeout = connectTimeout;
+        this.clientWhiteList = matcherOf(clientWhiteList);
+    }
+
+    @Override
+    public void addSessions(SessionPage page) {
+        for (Pair pair : pairs.tailMap(page.getAfterId(), false).values()) {
+            if (!page.wants(pair.id)) {
+                break;
+            }
+            page.add(new SessionInfo(pair.id,
+                    pair.remoteAddress,
+                    pair.backendAddress,
+                    pair.start,
+                    pair.bytesIn,
+                    pair.bytesOut,
+                    pair.lastActivityTime));
+        }
+    }
+
+    @Override
+    public boolean kill(long sessionId) {
+        Pair pair = pairs.get(sessionId);
+        if (pair == null) {
+            return false;
+        }
+        pair.kill();
+        return true;
+    }
+
+    @Override
+    public void close(boolean closeSessions) {
+        closeQuietly(serverChannel);
+        if (closeSessions) {
+            channels.forEach(BlockingEngine::closeQuietly);
+        }
+    }
+
+    /**
+     * A failed accept, e.g. out of file descriptors, fails again right away.
+     * The loop backs off and logs only the first failure of a row.
+     */
+    private void accept() {
+        long backoff = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel client = serverChannel.accept();
+                backoff = 0;
+                THREADS.newThread(() -> open(client)).start();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                if (backoff == 0) {
+                    log.error("Accept failed on port {}", tunnel.getProxyPort(), e);
+                } else {
+                    log.debug("Accept failed on port {}", tunnel.getProxyPort(), e);
+                }
+                backoff = Math.min(Math.max(ACCEPT_BACKOFF, backoff * 2), ACCEPT_MAX_BACKOFF);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * The same contract as the MINA {@code ClientToProxyIoHandler}: accept,
+     * connect, pair and forward.
+     */
+    private void open(SocketChannel client) {
+        InetSocketAddress remoteAddress;
+        try {
+            remoteAddress = (InetSocketAddress) client.getRemoteAddress();
+        } catch (IOException e) {
+            closeQuietly(client);
+            return;
+        }
+
+        CidrMatcher whiteList = clientWhiteList;
+        if (whiteList != null && !whiteList.matches(remoteAddress.getAddress())) {
+            log.debug("The connection has been disallowed for: {}", remoteAddress);
+            tunnel.metrics.connectionRejected();
+            closeQuietly(client);
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        tunnel.metrics.sessionOpened();
+        channels.add(client);
+
+        Backend backend = loadBalancer.select();
+        if (!backend.allowConnect()) {
+            tunnel.metrics.connectFailedFast();
+            log.debug("Backend {} is down, closing {}", backend, remoteAddress);
+            release(client);
+            accessLog(start, remoteAddress, null, 0, 0, "backend down");
+            return;
+        }
+        SocketChannel server = null;
+        try {
+            client.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            applySocketProfile(client);
+
+            long connectStart = System.nanoTime();
+            try {
+                server = SocketChannel.open();
+                applySocketProfile(server);
+                server.socket().connect(backend.getAddress(), connectTimeout);
+            } catch (IOException e) {
+                tunnel.metrics.connectFailed();
+                backend.failed();
+                log.debug("Connect to {} failed for {}", backend, remoteAddress, e);
+                closeQuietly(server);
+                release(client);
+                accessLog(start, remoteAddress, null, 0, 0, "connect failed");
+                return;
+            }
+
+            long latency = System.nanoTime() - connectStart;
+            tunnel.metrics.connected(latency);
+            backend.succeeded(latency);
+            backend.connectionOpened();
+            channels.add(server);
+
+            Pair pair = new Pair(client, server, backend, start, remoteAddress);
+            pairs.put(pair.id, pair);
+            SocketChannel connected = server;
+            THREADS.newThread(() -> pair.forward(connected, client, false)).start();
+            pair.forward(client, server, true);
+
+        } catch (IOException e) {
+            log.debug("Closing {}", remoteAddress, e);
+            release(client);
+            if (server != null) {
+                closeQuietly(server);
+            }
+        }
+    }
+
+    private void accessLog(long start, InetSocketAddress remoteAddress, Backend backend,
+            long bytesIn, long bytesOut, String closeReason) {
+        if (tunnel.accessLog != null) {
+            tunnel.accessLog.log(new AccessLogRecord(start,
+                    tunnel.getProxyPort(),
+                    remoteAddress,
+                    backend,
+                    bytesIn,
+                    bytesOut,
+                    System.currentTimeMillis() - start,
+                    closeReason));
+        }
+    }
+
+    private void release(SocketChannel client) {
+        channels.remove(client);
+        closeQuietly(client);
+        tunnel.metrics.sessionClosed();
+    }
+
+    private void applySocketProfile(SocketChannel channel) throws IOException {
+        SocketProfile socket = settings.getSocket();
+
+        if (socket.effectiveTcpNoDelay() != null) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, socket.effectiveTcpNoDelay());
+        }
+        if (socket.getKeepAlive() != null) {
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, socket.getKeepAlive());
+        }
+        if (socket.effectiveSendBufferSize() != null) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, socket.effectiveSendBufferSize());
+        }
+        if (socket.effectiveReceiveBufferSize() != null) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, socket.effectiveReceiveBufferSize());
+        }
+        if (socket.getSoLinger() != null) {
+            channel.setOption(StandardSocketOptions.SO_LINGER, socket.getSoLinger());
+        }
+    }
+
+    private static CidrMatcher matcherOf(Cidr[] clientWhiteList) {
+        return clientWhiteList != null ? CidrMatcher.of(Arrays.asList(clientWhiteList)) : null;
+    }
+
+    private static InetSocketAddress remoteAddressOf(SocketChannel channel) {
+        try {
+            return (InetSocketAddress) channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // nothing to do about it
+        }
+    }
+
+    /**
+     * The two directions of a client and its backend. An end of stream is
+     * passed on as a half close, the sockets are closed once both directions
+     * ended or either failed.
+     */
+    private class Pair {
+
+        private final SocketChannel client;
+
+        private final SocketChannel server;
+
+        private final Backend backend;
+
+        private final AtomicInteger running = new AtomicInteger(2);
+
+        private final long start;
+
+        private final long id = pairIds.incrementAndGet();
+
+        private final InetSocketAddress remoteAddress;
+
+        private final InetSocketAddress backendAddress;
+
+        /** Each written by the thread of its direction only */
+        private volatile long bytesIn;
+
+        private volatile long bytesOut;
+
+        private volatile long lastActivityTime;
+
+        private volatile String closeReason;
+
+        Pair(SocketChannel client, SocketChannel server, Backend backend, long start,
+                InetSocketAddress remoteAddress) {
+            this.client = client;
+            this.server = server;
+            this.backend = backend;
+            this.start = start;
+            this.remoteAddress = remoteAddress;
+            this.backendAddress = remoteAddressOf(server);
+            this.lastActivityTime = start;
+        }
+
+        void kill() {
+            closeReason = "killed";
+            // both directions fail on the closed sockets
+            closeQuietly(client);
+            closeQuietly(server);
+        }
+
+        void forward(SocketChannel from, SocketChannel to, boolean fromClient) {
+            // on the heap, the JDK copies through its cached direct buffers
+            ByteBuffer buffer = ByteBuffer.allocate(settings.getMaxReadBufferSize());
+            try {
+                int read;
+                while ((read = from.read(buffer)) >= 0) {
+                    if (fromClient) {
+                        tunnel.metrics.clientBytesReceived(read);
+                        bytesIn += read;
+                    } else {
+                        tunnel.metrics.backendBytesReceived(read);
+                        bytesOut += read;
+                    }
+                    lastActivityTime = System.currentTimeMillis();
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        to.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                to.shutdownOutput();
+                finished(false);
+            } catch (IOException e) {
+                finished(true);
+            }
+        }
+
+        private void finished(boolean failed) {
+            if (running.decrementAndGet() == 0 || failed) {
+                // the other direction fails on the closed sockets and ends too
+                if (channels.remove(server)) {
+                    backend.connectionClosed();
+                    closeQuietly(server);
+                }
+                if (channels.remove(client)) {
+                    pairs.remove(id);
+                    closeQuietly(client);
+                    tunnel.metrics.sessionClosed();
+                    String reason = closeReason != null ? closeReason : failed ? "failed" : "closed";
+                    accessLog(start, remoteAddress, backend, bytesIn, bytesOut, reason);
+                }
+            }
+        }
+    }
+}
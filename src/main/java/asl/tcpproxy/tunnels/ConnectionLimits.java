@@ -0,0 +1,123 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.tunnels;
+
+import java.util.Objects;
+
+/**
+ * Limits of the client sessions of a tunnel. 0 disables a limit.
+ */
+public class ConnectionLimits {
+
+    /** Concurrent client sessions of the tunnel */
+    int maxSessions = 0;
+
+    /** Concurrent sessions from a single client IP address */
+    int maxSessionsPerClient = 0;
+
+    /** New sessions per second */
+    int acceptRate = 0;
+
+    /** New sessions accepted at once after a quiet period, 0 is the same as the rate */
+    int acceptBurst = 0;
+
+    /**
+     * Milliseconds a session over the limits waits for a free place. 0 closes
+     * it at once.
+     */
+    long queueTimeout = 0;
+
+    /** Sessions waiting at most, the rest is closed at once */
+    int queueSize = 1024;
+
+    public boolean isEnabled() {
+        return maxSessions > 0 || maxSessionsPerClient > 0 || acceptRate > 0;
+    }
+
+    public int getMaxSessions() {
+        return maxSessions;
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    public int getMaxSessionsPerClient() {
+        return maxSessionsPerClient;
+    }
+
+    public void setMaxSessionsPerClient(int maxSessionsPerClient) {
+        this.maxSessionsPerClient = maxSessionsPerClient;
+    }
+
+    public int getAcceptRate() {
+        return acceptRate;
+    }
+
+    public void setAcceptRate(int acceptRate) {
+        this.acceptRate = acceptRate;
+    }
+
+    public int getAcceptBurst() {
+        return acceptBurst;
+    }
+
+    public void setAcceptBurst(int acceptBurst) {
+        this.acceptBurst = acceptBurst;
+    }
+
+    public long getQueueTimeout() {
+        return queueTimeout;
+    }
+
+    public void setQueueTimeout(long queueTimeout) {
+        this.queueTimeout = queueTimeout;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ConnectionLimits)) {
+            return false;
+        }
+        ConnectionLimits other = (ConnectionLimits) o;
+        return maxSessions == other.maxSessions
+                && maxSessionsPerClient == other.maxSessionsPerClient
+                && acceptRate == other.acceptRate
+                && acceptBurst == other.acceptBurst
+                && queueTimeout == other.queueTimeout
+                && queueSize == other.queueSize;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(maxSessions, maxSessionsPerClient, acceptRate, acceptBurst, queueTimeout, queueSize);
+    }
+}
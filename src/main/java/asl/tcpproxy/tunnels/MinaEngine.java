@@ -0,0 +1,350 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.tunnels;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.executor.ExecutorFilter;
+import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
+import org.apache.mina.transport.socket.SocketSessionConfig;
+import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+
+import asl.tcpproxy.backends.LoadBalancer;
+import asl.tcpproxy.filters.BandwidthFilter;
+import asl.tcpproxy.filters.Cidr;
+import asl.tcpproxy.filters.ConnectionLimitFilter;
+import asl.tcpproxy.filters.EventQueueMonitor;
+import asl.tcpproxy.filters.WhitelistFilter;
+import asl.tcpproxy.handlers.AbstractProxyIoHandler;
+import asl.tcpproxy.handlers.BackendSessionPool;
+import asl.tcpproxy.handlers.ClientToProxyIoHandler;
+import asl.tcpproxy.handlers.IdlePolicy;
+import asl.tcpproxy.metrics.MetricsSnapshot;
+
+/**
+ * Forwards with a MINA acceptor for the clients and a connector for the
+ * backends, see {@link ClientToProxyIoHandler}.
+ */
+class MinaEngine implements TunnelEngine {
+
+    private final Tunnel tunnel;
+
+    private final TunnelSettings settings;
+
+    NioSocketAcceptor acceptor;
+    NioSocketConnector connector;
+    WhitelistFilter whitelistFilter;
+    ConnectionLimitFilter connectionLimitFilter;
+    BandwidthFilter bandwidthFilter;
+    BackendSessionPool backendPool;
+    ClientToProxyIoHandler handler;
+    OrderedThreadPoolExecutor eventExecutor;
+    EventQueueMonitor eventQueue;
+
+    MinaEngine(Tunnel tunnel) {
+        this.tunnel = tunnel;
+        this.settings = tunnel.settings;
+    }
+
+    @Override
+    public void start(int proxyPort, LoadBalancer loadBalancer) throws IOException {
+        this.acceptor = createAcceptor();
+        this.connector = createConnector();
+
+        this.handler = new ClientToProxyIoHandler(connector,
+                loadBalancer,
+                tunnel.copyFreeForwarding,
+                settings.getWriteHighWatermark(),
+                settings.getWriteLowWatermark(),
+                idlePolicy(),
+                tunnel.metrics);
+        handler.useRetries(settings.getConnectRetries(), settings.getConnectRetryBackoff(), tunnel.scheduler);
+        handler.setConnectTimeout(tunnel.connectTimeout);
+        if (tunnel.accessLog != null) {
+            handler.useAccessLog(tunnel.accessLog, proxyPort);
+        }
+
+        if (settings.getBackendPoolMin() > 0) {
+            this.backendPool = new BackendSessionPool(connector,
+                    loadBalancer,
+                    settings.getBackendPoolMin(),
+                    Math.max(settings.getBackendPoolMin(), settings.getBackendPoolMax()),
+                    settings.getBackendPoolMaxIdleTime());
+            handler.useBackendPool(this.backendPool);
+        }
+
+        acceptor.setHandler(handler);
+        this.bandwidthFilter.start(tunnel.scheduler);
+        if (this.connectionLimitFilter != null) {
+            // the queue is served before the first client comes
+            this.connectionLimitFilter.start(tunnel.scheduler);
+        }
+        acceptor.bind(new InetSocketAddress(proxyPort));
+
+        if (this.backendPool != null) {
+            this.backendPool.start(tunnel.scheduler);
+        }
+    }
+
+    @Override
+    public void update(int connectTimeout, Cidr[] clientWhiteList) {
+        this.handler.setConnectTimeout(connectTimeout);
+
+        DefaultIoFilterChainBuilder chain = this.acceptor.getFilterChain();
+        if (clientWhiteList == null) {
+            if (chain.contains("whitelistFilter")) {
+                chain.remove("whitelistFilter");
+            }
+            this.whitelistFilter = null;
+        } else if (this.whitelistFilter != null) {
+            this.whitelistFilter.setSubnetBlacklist(clientWhiteList);
+        } else {
+            initWhiteList(chain, clientWhiteList);
+        }
+    }
+
+    @Override
+    public void setBandwidth(long tunnelBandwidth, long clientBandwidth) {
+        this.bandwidthFilter.setRates(tunnelBandwidth, clientBandwidth);
+    }
+
+    @Override
+    public void addTo(MetricsSnapshot snapshot) {
+        snapshot.setBandwidth(bandwidthFilter.getTunnelRate(), bandwidthFilter.getClientRate());
+        if (eventExecutor != null) {
+            snapshot.setEventExecutor(eventExecutor.getPoolSize(), eventQueue.getQueued(), eventQueue.getShed());
+        }
+        if (acceptor != null) {
+            snapshot.addReadBuffers(acceptor.getManagedSessions().values());
+            snapshot.addReadBuffers(connector.getManagedSessions().values());
+        }
+    }
+
+    /**
+     * Walks the sessions of the handler from the cursor on in the order of
+     * their ids, a page costs its own size and not all the sessions.
+     */
+    @Override
+    public void addSessions(SessionPage page) {
+        ClientToProxyIoHandler handler = this.handler;
+        if (this.acceptor == null || handler == null) {
+            return;
+        }
+        for (IoSession session : handler.sessionsAfter(page.getAfterId())) {
+            if (!page.wants(session.getId())) {
+                // the rest has higher ids
+                break;
+            }
+            IoSession backend = (IoSession) session.getAttribute(AbstractProxyIoHandler.OTHER_IO_SESSION);
+            page.add(new SessionInfo(session.getId(),
+                    session.getRemoteAddress(),
+                    backend != null ? backend.getRemoteAddress() : null,
+                    session.getCreationTime(),
+                    session.getReadBytes(),
+                    session.getWrittenBytes(),
+                    Math.max(session.getLastIoTime(), backend != null ? backend.getLastIoTime() : 0)));
+        }
+    }
+
+    @Override
+    public boolean kill(long sessionId) {
+        NioSocketAcceptor acceptor = this.acceptor;
+        IoSession session = acceptor != null ? acceptor.getManagedSessions().get(sessionId) : null;
+        if (session == null) {
+            return false;
+        }
+        AbstractProxyIoHandler.kill(session);
+        return true;
+    }
+
+    @Override
+    public void close(boolean closeSessions) {
+        if (this.backendPool != null) {
+            this.backendPool.close();
+            this.backendPool = null;
+        }
+        if (this.connectionLimitFilter != null) {
+            this.connectionLimitFilter.close();
+            this.connectionLimitFilter = null;
+        }
+        // null after a start which failed early
+        if (this.acceptor != null) {
+            this.acceptor.setCloseOnDeactivation(closeSessions);
+            this.acceptor.dispose();
+            this.acceptor = null;
+        }
+        if (this.connector != null) {
+            this.connector.dispose();
+            this.connector = null;
+        }
+        if (this.eventExecutor != null && closeSessions) {
+            // runs the sessionClosed events queued by the dispose first.
+            // Without closing the sessions the idle threads end by themselves
+            this.eventExecutor.shutdown();
+        }
+    }
+
+    private NioSocketConnector createConnector() {
+        NioSocketConnector connector = tunnel.ioProcessor != null
+                ? new NioSocketConnector(tunnel.ioExecutor, tunnel.ioProcessor)
+                : new NioSocketConnector();
+        initConnectorSessionConfig(connector.getSessionConfig());
+        initBandwidth(connector.getFilterChain());
+        initEventExecutor(connector.getFilterChain());
+
+        return connector;
+    }
+
+    private NioSocketAcceptor createAcceptor() {
+        NioSocketAcceptor acceptor = tunnel.ioProcessor != null
+                ? new NioSocketAcceptor(tunnel.ioExecutor, tunnel.ioProcessor)
+                : new NioSocketAcceptor();
+
+        initAcceptorSessionConfig(acceptor.getSessionConfig());
+        settings.getSocket().apply(acceptor);
+        initWhiteList(acceptor.getFilterChain(), tunnel.clientWhiteList);
+        initConnectionLimits(acceptor.getFilterChain());
+        initBandwidth(acceptor.getFilterChain());
+        initEventExecutor(acceptor.getFilterChain());
+
+        return acceptor;
+    }
+
+    private void initAcceptorSessionConfig(SocketSessionConfig sessionConfig) {
+        initReadBufferSize(sessionConfig);
+        sessionConfig.setKeepAlive(true);
+        idlePolicy().apply(sessionConfig);
+        settings.getSocket().apply(sessionConfig);
+    }
+
+    private void initConnectorSessionConfig(SocketSessionConfig sessionConfig) {
+        initReadBufferSize(sessionConfig);
+        // shrinks the read buffer of idle backend sessions as well
+        idlePolicy().apply(sessionConfig);
+        settings.getSocket().apply(sessionConfig);
+    }
+
+    private IdlePolicy idlePolicy() {
+        return new IdlePolicy(settings.getReadIdleTimeout(),
+                settings.getWriteIdleTimeout(),
+                settings.getMaxLifetime());
+    }
+
+    /**
+     * Sessions start with the smallest read buffer. MINA doubles it after every
+     * read filling it up to the max and halves it after reads using less than
+     * half of it. Idle sessions are reset to the min by the handler.
+     */
+    private void initReadBufferSize(SocketSessionConfig sessionConfig) {
+        if (settings.getMinReadBufferSize() > settings.getMaxReadBufferSize()) {
+            throw new IllegalArgumentException(String.format("Read buffer min %d is above max %d",
+                    settings.getMinReadBufferSize(),
+                    settings.getMaxReadBufferSize()));
+        }
+        // the max first, the min is checked against it
+        sessionConfig.setMaxReadBufferSize(settings.getMaxReadBufferSize());
+        sessionConfig.setMinReadBufferSize(settings.getMinReadBufferSize());
+        sessionConfig.setReadBufferSize(settings.getMinReadBufferSize());
+    }
+
+    private void initWhiteList(DefaultIoFilterChainBuilder chain, Cidr[] clientWhiteList) {
+        if (clientWhiteList != null) {
+            this.whitelistFilter = new WhitelistFilter(tunnel.metrics);
+            this.whitelistFilter.setSubnetBlacklist(clientWhiteList);
+            // ahead of the limits also when added to a running tunnel
+            chain.addFirst("whitelistFilter", this.whitelistFilter);
+        }
+    }
+
+    /**
+     * Goes after the whitelist, so the rejected clients don't take any place.
+     */
+    private void initConnectionLimits(DefaultIoFilterChainBuilder chain) {
+        ConnectionLimits limits = settings.getLimits();
+        if (limits.isEnabled()) {
+            this.connectionLimitFilter = new ConnectionLimitFilter(limits.getMaxSessions(),
+                    limits.getMaxSessionsPerClient(),
+                    limits.getAcceptRate(),
+                    limits.getAcceptBurst(),
+                    limits.getQueueTimeout(),
+                    limits.getQueueSize(),
+                    tunnel.metrics);
+            chain.addLast("connectionLimitFilter", this.connectionLimitFilter);
+        }
+    }
+
+    /**
+     * Always there, so the limits can be set on a running tunnel. Shared by
+     * the acceptor and the connector to count both directions. Unlimited it
+     * takes no lock.
+     */
+    private void initBandwidth(DefaultIoFilterChainBuilder chain) {
+        if (this.bandwidthFilter == null) {
+            this.bandwidthFilter = new BandwidthFilter(settings.getTunnelBandwidth(),
+                    settings.getClientBandwidth(),
+                    tunnel.metrics);
+        }
+        chain.addLast("bandwidthFilter", this.bandwidthFilter);
+    }
+
+    /**
+     * Last in the chain, right in front of the handlers. Only the opened and
+     * closed sessions go to the event threads: connecting the backend, taking
+     * from the pool and closing the other session. An executor ordered by
+     * session keeps the events of a session in sequence. The reads stay
+     * suspended until the pair is connected, so no message overtakes the
+     * opening.
+     */
+    private void initEventExecutor(DefaultIoFilterChainBuilder chain) {
+        if (settings.getEventThreads() <= 0) {
+            return;
+        }
+        if (this.eventExecutor == null) {
+            this.eventQueue = new EventQueueMonitor(settings.getEventQueueSize());
+            // no core threads, an idle stage costs nothing
+            this.eventExecutor = new OrderedThreadPoolExecutor(0,
+                    settings.getEventThreads(),
+                    30,
+                    TimeUnit.SECONDS,
+                    eventThreadFactory(),
+                    this.eventQueue);
+        }
+        chain.addLast("eventExecutor", new ExecutorFilter(this.eventExecutor,
+                IoEventType.SESSION_OPENED,
+                IoEventType.SESSION_CLOSED));
+    }
+
+    private ThreadFactory eventThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "tunnel-" + tunnel.getProxyPort() + "-events-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
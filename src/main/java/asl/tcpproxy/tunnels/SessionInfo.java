@@ -0,0 +1,99 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.tunnels;
+
+/**
+ * Point in time view of a live client session and its backend. Serialized as
+ * is by the sessions endpoint.
+ */
+public class SessionInfo {
+
+    /** Unknown bytes or times, e.g. of spliced sessions */
+    public static final long UNKNOWN = -1;
+
+    final long id;
+
+    final String client;
+
+    /** null while connecting */
+    final String backend;
+
+    final long startTime;
+
+    final long bytesIn;
+
+    final long bytesOut;
+
+    final long lastActivityTime;
+
+    SessionInfo(long id, Object client, Object backend, long startTime, long bytesIn, long bytesOut,
+            long lastActivityTime) {
+        this.id = id;
+        this.client = String.valueOf(client);
+        this.backend = backend != null ? backend.toString() : null;
+        this.startTime = startTime;
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+        this.lastActivityTime = lastActivityTime;
+    }
+
+    /**
+     * Unique within the tunnel, increasing with the start of the session.
+     */
+    public long getId() {
+        return id;
+    }
+
+    public String getClient() {
+        return client;
+    }
+
+    public String getBackend() {
+        return backend;
+    }
+
+    /**
+     * Epoch milliseconds.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Bytes read from the client.
+     */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /**
+     * Bytes written to the client.
+     */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    /**
+     * Epoch milliseconds of the last read or write of either side.
+     */
+    public long getLastActivityTime() {
+        return lastActivityTime;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.tunnels;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Collects a page of sessions: the lowest ids above the cursor. The engines
+ * offer them in the order of their ids starting at the cursor and stop once
+ * the page does not want any more, an unordered scan works as well. Only the
+ * page is kept and sorted, the sessions not making it are never turned into
+ * a {@link SessionInfo}.
+ */
+class SessionPage {
+
+    private final long afterId;
+
+    private final int limit;
+
+    /** The highest id of the page on top */
+    private final PriorityQueue<SessionInfo> page;
+
+    SessionPage(long afterId, int limit) {
+        this.afterId = afterId;
+        this.limit = Math.max(0, limit);
+        this.page = new PriorityQueue<>(Math.max(1, this.limit),
+                Comparator.comparingLong(SessionInfo::getId).reversed());
+    }
+
+    long getAfterId() {
+        return afterId;
+    }
+
+    /**
+     * Whether a session with the id would be on the page as it is now.
+     */
+    boolean wants(long id) {
+        return id > afterId && limit > 0 && (page.size() < limit || id < page.peek().getId());
+    }
+
+    void add(SessionInfo session) {
+        if (wants(session.getId())) {
+            page.add(session);
+            if (page.size() > limit) {
+                page.poll();
+            }
+        }
+    }
+
+    List<SessionInfo> toList() {
+        List<SessionInfo> sessions = new ArrayList<>(page);
+        sessions.sort(Comparator.comparingLong(SessionInfo::getId));
+        return sessions;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.tunnels;
+
+import java.util.Objects;
+
+import org.apache.mina.transport.socket.SocketAcceptor;
+import org.apache.mina.transport.socket.SocketSessionConfig;
+
+/**
+ * Socket options of both legs of a tunnel.
+ * 
+ * A named preset gives the base values, every option set explicitly overrides
+ * the preset. Options left unset keep the MINA/OS defaults.
+ */
+public class SocketProfile {
+
+    public enum Preset {
+        /** MINA and OS defaults */
+        DEFAULT(null, null, null, null),
+        /** Interactive traffic like database protocols */
+        LOW_LATENCY(true, null, null, null),
+        /** Large transfers */
+        BULK(false, 4 * 1024 * 1024, 4 * 1024 * 1024, 1024);
+
+        final Boolean tcpNoDelay;
+        final Integer sendBufferSize;
+        final Integer receiveBufferSize;
+        final Integer backlog;
+
+        Preset(Boolean tcpNoDelay, Integer sendBufferSize, Integer receiveBufferSize, Integer backlog) {
+            this.tcpNoDelay = tcpNoDelay;
+            this.sendBufferSize = sendBufferSize;
+            this.receiveBufferSize = receiveBufferSize;
+            this.backlog = backlog;
+        }
+    }
+
+    Preset preset = Preset.DEFAULT;
+
+    Boolean tcpNoDelay;
+
+    Boolean keepAlive;
+
+    /** SO_SNDBUF in bytes */
+    Integer sendBufferSize;
+
+    /** SO_RCVBUF in bytes */
+    Integer receiveBufferSize;
+
+    /** SO_LINGER in seconds, negative disables it */
+    Integer soLinger;
+
+    /** Accept queue length of the proxy port */
+    Integer backlog;
+
+    /**
+     * Applies the options to the session config of an acceptor or a connector.
+     */
+    public void apply(SocketSessionConfig config) {
+        if (effectiveTcpNoDelay() != null) {
+            config.setTcpNoDelay(effectiveTcpNoDelay());
+        }
+        if (keepAlive != null) {
+            config.setKeepAlive(keepAlive);
+        }
+        if (effectiveSendBufferSize() != null) {
+            config.setSendBufferSize(effectiveSendBufferSize());
+        }
+        if (effectiveReceiveBufferSize() != null) {
+            config.setReceiveBufferSize(effectiveReceiveBufferSize());
+        }
+        if (soLinger != null) {
+            config.setSoLinger(soLinger);
+        }
+    }
+
+    /**
+     * Applies the listening socket options. Has to be done before binding.
+     */
+    public void apply(SocketAcceptor acceptor) {
+        if (effectiveBacklog() != null) {
+            acceptor.setBacklog(effectiveBacklog());
+        }
+    }
+
+    /*
+     * The values after applying the preset, null keeps the default. For the
+     * engines which don't use MINA.
+     */
+
+    Boolean effectiveTcpNoDelay() {
+        return tcpNoDelay != null ? tcpNoDelay : preset.tcpNoDelay;
+    }
+
+    Integer effectiveSendBufferSize() {
+        return sendBufferSize != null ? sendBufferSize : preset.sendBufferSize;
+    }
+
+    Integer effectiveReceiveBufferSize() {
+        return receiveBufferSize != null ? receiveBufferSize : preset.receiveBufferSize;
+    }
+
+    Integer effectiveBacklog() {
+        return backlog != null ? backlog : preset.backlog;
+    }
+
+    public Preset getPreset() {
+        return preset;
+    }
+
+    public void setPreset(Preset preset) {
+        this.preset = preset;
+    }
+
+    public Boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    public void setTcpNoDelay(Boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public Boolean getKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(Boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    public Integer getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    public void setSendBufferSize(Integer sendBufferSize) {
+        this.sendBufferSize = sendBufferSize;
+    }
+
+    public Integer getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public void setReceiveBufferSize(Integer receiveBufferSize) {
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public Integer getSoLinger() {
+        return soLinger;
+    }
+
+    public void setSoLinger(Integer soLinger) {
+        this.soLinger = soLinger;
+    }
+
+    public Integer getBacklog() {
+        return backlog;
+    }
+
+    public void setBacklog(Integer backlog) {
+        this.backlog = backlog;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SocketProfile)) {
+            return false;
+        }
+        SocketProfile other = (SocketProfile) o;
+        return preset == other.preset
+                && Objects.equals(tcpNoDelay, other.tcpNoDelay)
+                && Objects.equals(keepAlive, other.keepAlive)
+                && Objects.equals(sendBufferSize, other.sendBufferSize)
+                && Objects.equals(receiveBufferSize, other.receiveBufferSize)
+                && Objects.equals(soLinger, other.soLinger)
+                && Objects.equals(backlog, other.backlog);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(preset, tcpNoDelay, keepAlive, sendBufferSize, receiveBufferSize, soLinger, backlog);
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.tunnels;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import asl.tcpproxy.accesslog.AccessLogRecord;
+import asl.tcpproxy.backends.Backend;
+import asl.tcpproxy.backends.LoadBalancer;
+import asl.tcpproxy.filters.Cidr;
+import asl.tcpproxy.filters.CidrMatcher;
+import asl.tcpproxy.metrics.MetricsSnapshot;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.RecvByteBufAllocator;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+/**
+ * Forwards with the Netty epoll transport. Each direction is a splice(2)
+ * through a kernel pipe, so the bytes are never copied to the user space.
+ * 
+ * Both channels of a pair run on the same event loop, which splicing requires.
+ * The bytes are not counted as they don't pass through the proxy, Netty does
+ * not report the spliced amounts. The metrics say so.
+ */
+class SpliceEngine implements TunnelEngine {
+
+    private static Logger log = LoggerFactory.getLogger(SpliceEngine.class);
+
+    /**
+     * Netty splices no more than the read buffer guess per wakeup. The
+     * adaptive guess starts at 1 KiB and does not grow while splicing, which
+     * held a loopback stream at a few MB/s. A fixed pipe full per wakeup.
+     */
+    private static final RecvByteBufAllocator SPLICE_CHUNKS = new FixedRecvByteBufAllocator(64 * 1024);
+
+    /** Shared by all the splicing tunnels */
+    private static EventLoopGroup eventLoops;
+
+    private final Tunnel tunnel;
+
+    private final TunnelSettings settings;
+
+    private volatile int connectTimeout;
+
+    /** null lets everybody in */
+    private volatile CidrMatcher clientWhiteList;
+
+    private LoadBalancer loadBalancer;
+
+    private Channel serverChannel;
+
+    /** Open client and backend channels, closed channels leave by themselves */
+    private final ChannelGroup channels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+
+    /** The client sessions ordered by their id, changed once per session only */
+    private final ConcurrentNavigableMap<Long, ClientHandler> sessions = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong sessionIds = new AtomicLong();
+
+    SpliceEngine(Tunnel tunnel) {
+        this.tunnel = tunnel;
+        this.settings = tunnel.settings;
+        this.connectTimeout = tunnel.connectTimeout;
+        this.clientWhiteList = matcherOf(tunnel.clientWhiteList);
+    }
+
+    /**
+     * Whether the native transport loads on this OS and CPU.
+     */
+    static boolean isAvailable() {
+        try {
+            return Epoll.isAvailable();
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    private static synchronized EventLoopGroup eventLoops() {
+        if (eventLoops == null) {
+            // daemons, the sessions left running don't keep the JVM up
+            eventLoops = new EpollEventLoopGroup(0, new DefaultThreadFactory("splice", true));
+        }
+        return eventLoops;
+    }
+
+    /**
+     * Stops the shared event loops, the next splicing tunnel starts new ones.
+     */
+    static synchronized void shutdownEventLoops() {
+        if (eventLoops != null) {
+            eventLoops.shutdownGracefully();
+            eventLoops = null;
+        }
+    }
+
+    @Override
+    public void start(int proxyPort, LoadBalancer loadBalancer) throws IOException {
+        this.loadBalancer = loadBalancer;
+
+        ServerBootstrap bootstrap = new ServerBootstrap()
+                .group(eventLoops())
+                .channel(EpollServerSocketChannel.class)
+                .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED)
+                // nothing is read before the backend is connected
+                .childOption(ChannelOption.AUTO_READ, false)
+                .childOption(ChannelOption.RCVBUF_ALLOCATOR, SPLICE_CHUNKS)
+                .childHandler(new ChannelInitializer<EpollSocketChannel>() {
+                    @Override
+                    protected void initChannel(EpollSocketChannel channel) {
+                        channel.pipeline().addLast(new ClientHandler());
+                    }
+                });
+        Integer backlog = settings.getSocket().effectiveBacklog();
+        if (backlog != null) {
+            bootstrap.option(ChannelOption.SO_BACKLOG, backlog);
+        }
+
+        ChannelFuture bind = bootstrap.bind(proxyPort).awaitUninterruptibly();
+        if (!bind.isSuccess()) {
+            throw new IOException("Unable to bind port " + proxyPort, bind.cause());
+        }
+        this.serverChannel = bind.channel();
+    }
+
+    @Override
+    public void update(int connectTimeout, Cidr[] clientWhiteList) {
+        this.connectTimeout = connectTimeout;
+        this.clientWhiteList = matcherOf(clientWhiteList);
+    }
+
+    @Override
+    public void addTo(MetricsSnapshot snapshot) {
+        snapshot.setBytesCounted(false);
+    }
+
+    @Override
+    public void addSessions(SessionPage page) {
+        for (ClientHandler handler : sessions.tailMap(page.getAfterId(), false).values()) {
+            if (!page.wants(handler.id)) {
+                break;
+            }
+            page.add(handler.info());
+        }
+    }
+
+    @Override
+    public boolean kill(long sessionId) {
+        ClientHandler handler = sessions.get(sessionId);
+        if (handler == null) {
+            return false;
+        }
+        handler.kill();
+        return true;
+    }
+
+    @Override
+    public void close(boolean closeSessions) {
+        // null when the bind failed
+        if (serverChannel != null) {
+            serverChannel.close().awaitUninterruptibly();
+        }
+        if (closeSessions) {
+            channels.close().awaitUninterruptibly();
+        }
+    }
+
+    private static CidrMatcher matcherOf(Cidr[] clientWhiteList) {
+        return clientWhiteList != null ? CidrMatcher.of(Arrays.asList(clientWhiteList)) : null;
+    }
+
+    private void applySocketProfile(Channel channel) {
+        SocketProfile socket = settings.getSocket();
+        ChannelConfig config = channel.config();
+
+        if (socket.effectiveTcpNoDelay() != null) {
+            config.setOption(ChannelOption.TCP_NODELAY, socket.effectiveTcpNoDelay());
+        }
+        if (socket.getKeepAlive() != null) {
+            config.setOption(ChannelOption.SO_KEEPALIVE, socket.getKeepAlive());
+        }
+        if (socket.effectiveSendBufferSize() != null) {
+            config.setOption(ChannelOption.SO_SNDBUF, socket.effectiveSendBufferSize());
+        }
+        if (socket.effectiveReceiveBufferSize() != null) {
+            config.setOption(ChannelOption.SO_RCVBUF, socket.effectiveReceiveBufferSize());
+        }
+        if (socket.getSoLinger() != null) {
+            config.setOption(ChannelOption.SO_LINGER, socket.getSoLinger());
+        }
+    }
+
+    /**
+     * Splices until either channel is closed. A single splice request of
+     * Netty ends after Integer.MAX_VALUE bytes (2 GiB) per direction, so a
+     * completed one is followed by the next while both channels are open.
+     */
+    private static void splice(EpollSocketChannel from, EpollSocketChannel to) {
+        from.spliceTo(to, Integer.MAX_VALUE).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                from.close();
+                to.close();
+            } else if (from.isActive() && to.isActive()) {
+                splice(from, to);
+            }
+        });
+    }
+
+    /**
+     * The client side of a pair, the same contract as the MINA
+     * {@code ClientToProxyIoHandler}: accept, connect, pair and forward.
+     */
+    private class ClientHandler extends ChannelInboundHandlerAdapter {
+
+        private boolean opened;
+
+        private long id;
+
+        private EpollSocketChannel client;
+
+        private long start;
+
+        private Backend backend;
+
+        private String closeReason;
+
+        /** Read by the sessions endpoint too */
+        private volatile EpollSocketChannel backendChannel;
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            EpollSocketChannel client = (EpollSocketChannel) ctx.channel();
+
+            CidrMatcher whiteList = clientWhiteList;
+            if (whiteList != null && !whiteList.matches(client.remoteAddress().getAddress())) {
+                log.debug("The connection has been disallowed for: {}", client.remoteAddress());
+                tunnel.metrics.connectionRejected();
+                client.close();
+                return;
+            }
+
+            opened = true;
+            id = sessionIds.incrementAndGet();
+            this.client = client;
+            sessions.put(id, this);
+            start = System.currentTimeMillis();
+            tunnel.metrics.sessionOpened();
+            channels.add(client);
+            client.config().setOption(ChannelOption.SO_KEEPALIVE, true);
+            applySocketProfile(client);
+
+            connect(client);
+        }
+
+        private void connect(EpollSocketChannel client) {
+            Backend backend = loadBalancer.select();
+            if (!backend.allowConnect()) {
+                tunnel.metrics.connectFailedFast();
+                log.debug("Backend {} is down, closing {}", backend, client.remoteAddress());
+                closeReason = "backend down";
+                client.close();
+                return;
+            }
+            long connectStart = System.nanoTime();
+
+            Bootstrap bootstrap = new Bootstrap()
+                    .group(client.eventLoop())
+                    .channel(EpollSocketChannel.class)
+                    .option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED)
+                    .option(ChannelOption.AUTO_READ, false)
+                    .option(ChannelOption.RCVBUF_ALLOCATOR, SPLICE_CHUNKS)
+                    .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+                    .handler(new BackendHandler(client, backend));
+
+            bootstrap.connect(backend.getAddress()).addListener((ChannelFutureListener) future -> {
+                if (!future.isSuccess()) {
+                    tunnel.metrics.connectFailed();
+                    backend.failed();
+                    log.debug("Connect to {} failed for {}", backend, client.remoteAddress(), future.cause());
+                    closeReason = "connect failed";
+                    client.close();
+                    return;
+                }
+
+                long latency = System.nanoTime() - connectStart;
+                tunnel.metrics.connected(latency);
+                backend.succeeded(latency);
+                this.backend = backend;
+                pair(client, (EpollSocketChannel) future.channel());
+            });
+        }
+
+        private void pair(EpollSocketChannel client, EpollSocketChannel backend) {
+            if (!client.isActive()) {
+                // the client gave up while connecting
+                backend.close();
+                return;
+            }
+
+            this.backendChannel = backend;
+            channels.add(backend);
+            applySocketProfile(backend);
+
+            splice(client, backend);
+            splice(backend, client);
+            client.config().setAutoRead(true);
+            backend.config().setAutoRead(true);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            // only what was read before the splicing took over
+            tunnel.metrics.clientBytesReceived(((ByteBuf) msg).readableBytes());
+            backendChannel.writeAndFlush(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (opened) {
+                sessions.remove(id);
+                tunnel.metrics.sessionClosed();
+                accessLog((EpollSocketChannel) ctx.channel());
+            }
+            if (backendChannel != null) {
+                backendChannel.close();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.debug("Closing {}", ctx.channel(), cause);
+            if (closeReason == null) {
+                closeReason = cause.toString();
+            }
+            ctx.close();
+        }
+
+        SessionInfo info() {
+            EpollSocketChannel backendChannel = this.backendChannel;
+            return new SessionInfo(id,
+                    client.remoteAddress(),
+                    backendChannel != null ? backendChannel.remoteAddress() : null,
+                    start,
+                    SessionInfo.UNKNOWN,
+                    SessionInfo.UNKNOWN,
+                    SessionInfo.UNKNOWN);
+        }
+
+        void kill() {
+            client.eventLoop().execute(() -> {
+                if (closeReason == null) {
+                    closeReason = "killed";
+                }
+                client.close();
+            });
+        }
+
+        /**
+         * The spliced bytes never pass the pipeline, they are not in the
+         * record.
+         */
+        private void accessLog(EpollSocketChannel client) {
+            if (tunnel.accessLog != null) {
+                tunnel.accessLog.log(new AccessLogRecord(start,
+                        tunnel.getProxyPort(),
+                        client.remoteAddress(),
+                        backend,
+                        AccessLogRecord.UNKNOWN,
+                        AccessLogRecord.UNKNOWN,
+                        System.currentTimeMillis() - start,
+                        closeReason != null ? closeReason : "closed"));
+            }
+        }
+    }
+
+    /**
+     * The backend side of a pair.
+     */
+    private class BackendHandler extends ChannelInboundHandlerAdapter {
+
+        private final EpollSocketChannel client;
+
+        private final Backend backend;
+
+        BackendHandler(EpollSocketChannel client, Backend backend) {
+            this.client = client;
+            this.backend = backend;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            backend.connectionOpened();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            tunnel.metrics.backendBytesReceived(((ByteBuf) msg).readableBytes());
+            client.writeAndFlush(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            backend.connectionClosed();
+            client.close();
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            log.debug("Closing {}", ctx.channel(), cause);
+            ctx.close();
+        }
+    }
+}
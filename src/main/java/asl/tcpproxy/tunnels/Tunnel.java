@@ -21,63 +21,108 @@ package asl.tcpproxy.tunnels;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
-import org.apache.mina.core.filterchain.DefaultIoFilterChainBuilder;
-import org.apache.mina.core.session.IdleStatus;
-import org.apache.mina.transport.socket.SocketSessionConfig;
-import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.service.IoProcessor;
+import org.apache.mina.transport.socket.nio.NioSession;
 import org.apache.mina.transport.socket.nio.NioSocketConnector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import asl.tcpproxy.filters.WhitelistFilter;
-import asl.tcpproxy.handlers.ClientToProxyIoHandler;
+import asl.tcpproxy.accesslog.AccessLog;
+import asl.tcpproxy.backends.AddressResolver;
+import asl.tcpproxy.backends.Backend;
+import asl.tcpproxy.backends.HealthChecker;
+import asl.tcpproxy.backends.LoadBalancer;
+import asl.tcpproxy.filters.Cidr;
+import asl.tcpproxy.metrics.MetricsSnapshot;
+import asl.tcpproxy.metrics.TunnelMetrics;
 
 public class Tunnel implements Closeable {
 
     private static Logger log = LoggerFactory.getLogger(Tunnel.class);
 
-    int remotePort;
-    String endpoint;
+    /** {@code proxyPort:host:port[,host:port...]} */
+    private static final Pattern DESCRIPTOR = Pattern.compile("^(\\d+):(.+)$");
+
+    private static final Pattern TARGET = Pattern.compile("^(.+):(\\d+)$");
+
+    List<Backend> backends = new ArrayList<>();
     int proxyPort;
-    NioSocketAcceptor acceptor;
-    InetAddress[] clientWhiteList;
+    volatile TunnelEngine engine;
+    NioSocketConnector probeConnector;
+    LoadBalancer loadBalancer;
+    HealthChecker healthChecker;
+    AddressResolver addressResolver;
+    Executor ioExecutor;
+    Executor resolverExecutor;
+    AccessLog accessLog;
+    IoProcessor<NioSession> ioProcessor;
+    ScheduledExecutorService scheduler;
+    Cidr[] clientWhiteList;
     int connectTimeout;
+    boolean copyFreeForwarding = true;
+    TunnelSettings settings = new TunnelSettings();
+    TunnelMetrics metrics = new TunnelMetrics();
     String statusMessage;
-    boolean active;
+    volatile boolean active;
+    /** Set for a descriptor which can't be parsed, the tunnel never opens */
+    boolean malformed;
+    /** Whether the last failed open may succeed when tried again */
+    volatile boolean retryable;
 
-    public Tunnel(int remotePort, String endpoint, int proxyPort, int connectTimeout, InetAddress[] clientWhiteList) {
-        this.remotePort = remotePort;
-        this.endpoint = endpoint;
+    public Tunnel(int remotePort, String endpoint, int proxyPort, int connectTimeout, Cidr[] clientWhiteList) {
+        this.backends.add(new Backend(endpoint, remotePort));
         this.proxyPort = proxyPort;
         this.connectTimeout = connectTimeout;
         this.clientWhiteList = clientWhiteList;
     }
 
-    public Tunnel(String tunnelDesc, int connectTimeout, InetAddress[] clientWhiteList) {
-        Pattern regex = Pattern.compile("^(\\d*):(.*):(\\d*)$");
-        Matcher matcher = regex.matcher(tunnelDesc);
-        if (matcher.matches()) {
+    public Tunnel(String tunnelDesc, int connectTimeout, Cidr[] clientWhiteList) {
+        Matcher matcher = DESCRIPTOR.matcher(tunnelDesc);
+        if (matcher.matches() && parseTargets(matcher.group(2))) {
             succsessfulInit(connectTimeout, clientWhiteList, matcher);
         } else {
             failedInit(tunnelDesc);
         }
     }
 
+    public Tunnel(String tunnelDesc, int connectTimeout, Cidr[] clientWhiteList, boolean copyFreeForwarding) {
+        this(tunnelDesc, connectTimeout, clientWhiteList);
+        this.copyFreeForwarding = copyFreeForwarding;
+    }
+
     private void failedInit(String tunnelDesc) {
+        malformed = true;
         statusMessage = String.format("Wrong tunnel description: %s", tunnelDesc);
     }
 
-    private void succsessfulInit(int connectTimeout, InetAddress[] clientWhiteList, Matcher matcher) {
+    private boolean parseTargets(String targets) {
+        for (String target : targets.split(",")) {
+            Matcher matcher = TARGET.matcher(target.trim());
+            if (!matcher.matches()) {
+                backends.clear();
+                return false;
+            }
+            backends.add(new Backend(matcher.group(1), Integer.parseInt(matcher.group(2))));
+        }
+        return true;
+    }
+
+    private void succsessfulInit(int connectTimeout, Cidr[] clientWhiteList, Matcher matcher) {
         this.proxyPort = Integer.parseInt(matcher.group(1));
-        this.endpoint = matcher.group(2);
-        this.remotePort = Integer.parseInt(matcher.group(3));
         this.clientWhiteList = clientWhiteList;
         this.connectTimeout = connectTimeout;
+        this.statusMessage = String.format("TCP Proxy to %s on port %d is starting...", targets(), proxyPort);
     }
 
     @Override
@@ -86,33 +131,190 @@ public class Tunnel implements Closeable {
     }
 
     public String descriptor() {
-        return String.format("%d:%s:%d", proxyPort, endpoint, remotePort);
+        return String.format("%d:%s", proxyPort, targets());
+    }
+
+    private String targets() {
+        return backends.stream().map(Backend::toString).collect(Collectors.joining(","));
+    }
+
+    public int getProxyPort() {
+        return proxyPort;
+    }
+
+    public TunnelSettings getSettings() {
+        return settings;
+    }
+
+    public void setSettings(TunnelSettings settings) {
+        this.settings = settings;
+    }
+
+    public TunnelMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * The tunnel metrics together with the state of every backend.
+     */
+    public MetricsSnapshot metricsSnapshot() {
+        Map<String, String> backendStatus = new LinkedHashMap<>();
+        for (Backend backend : backends) {
+            backendStatus.put(backend.toString(), backend.status());
+        }
+
+        MetricsSnapshot snapshot = metrics.snapshot();
+        snapshot.setBackends(backendStatus);
+        if (isActive()) {
+            engine.addTo(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Makes the tunnel run its acceptor and connector on the given executor and
+     * processor pool instead of creating its own ones. The scheduler runs the
+     * background tasks of the tunnel. Has to be called before {@link #open()}.
+     */
+    public void useSharedIo(Executor ioExecutor, IoProcessor<NioSession> ioProcessor,
+            ScheduledExecutorService scheduler) {
+        this.ioExecutor = ioExecutor;
+        this.ioProcessor = ioProcessor;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Makes the tunnel refresh the addresses of its backends in the
+     * background, the lookups run on the given executor. Without it the
+     * backends are resolved only when the tunnel opens. Has to be called
+     * before {@link #open()}.
+     */
+    public void useResolver(Executor resolverExecutor) {
+        this.resolverExecutor = resolverExecutor;
+    }
+
+    /**
+     * Makes the tunnel count into the metrics of the tunnel it replaces. The
+     * sessions of that one keep running and counting into them, so nothing
+     * drops out of the totals. Has to be called before {@link #open()}.
+     */
+    public void useMetrics(TunnelMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Makes the tunnel log every client session, null logs nothing. Has to be
+     * called before {@link #open()}.
+     */
+    public void useAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
     }
 
     public void open() {
+        if (malformed) {
+            retryable = false;
+            log.error(statusMessage);
+            return;
+        }
         if (isDown()) {
             try {
-                this.acceptor = createAcceptor();
-                startProxy(this.acceptor, createConnector());
+                this.engine = createEngine();
+                startProxy(this.engine);
                 activate();
                 
                 log.info(statusMessage);
 
             } catch (Throwable ex) {
+                // a port in use may be freed, a wrong setting or address stays wrong
+                retryable = ex instanceof IOException;
+                // a failed bind is retried, nothing of this attempt may stay
+                release(true);
                 disactivate(ex.getMessage());
                 log.error(statusMessage, ex);
             }
         }
     }
     
+    /**
+     * Whether the other tunnel would listen and forward exactly the same way.
+     */
+    public boolean sameAs(Tunnel other) {
+        return proxyPort == other.proxyPort
+                && descriptor().equals(other.descriptor())
+                && copyFreeForwarding == other.copyFreeForwarding
+                && settings.equals(other.settings);
+    }
+
+    /**
+     * Applies the settings which can be changed without rebinding. Sessions
+     * already established are not affected.
+     */
+    public void update(int connectTimeout, Cidr[] clientWhiteList) {
+        this.connectTimeout = connectTimeout;
+        this.clientWhiteList = clientWhiteList;
+
+        if (isActive()) {
+            engine.update(connectTimeout, clientWhiteList);
+        }
+    }
+
+    /**
+     * Changes the bytes per second limits of the running tunnel. Applies to
+     * the established sessions too.
+     */
+    public void setBandwidth(long tunnelBandwidth, long clientBandwidth) {
+        if (isActive()) {
+            engine.setBandwidth(tunnelBandwidth, clientBandwidth);
+        }
+    }
+
+    /**
+     * The live client sessions with an id above afterId, at most limit of
+     * them ordered by id.
+     */
+    public List<SessionInfo> sessions(long afterId, int limit) {
+        SessionPage page = new SessionPage(afterId, limit);
+        if (isActive()) {
+            engine.addSessions(page);
+        }
+        return page.toList();
+    }
+
+    /**
+     * Closes a client session and its backend session.
+     *
+     * @return false if there is no such live session
+     */
+    public boolean kill(long sessionId) {
+        return isActive() && engine.kill(sessionId);
+    }
+
     @Override
     public void close() {
+        close(true);
+    }
+
+    /**
+     * Stops listening but lets the established sessions run until they end.
+     */
+    public void closeKeepingSessions() {
+        close(false);
+    }
+
+    /**
+     * Stops the threads the engines share between all the tunnels. Only once
+     * every tunnel is closed, a tunnel opened afterwards starts new ones.
+     */
+    public static void shutdownSharedEngines() {
+        SpliceEngine.shutdownEventLoops();
+    }
+
+    private void close(boolean closeSessions) {
         try {
             if (isActive()) {
-                this.acceptor.dispose();
-                this.acceptor = null;
+                release(closeSessions);
                 disactivate();
-                log.info("The proxy on the port {} to {} port {} is closed", proxyPort, endpoint, remotePort);
+                log.info("The proxy on the port {} to {} is closed", proxyPort, targets());
             }
 
         } catch (Throwable ex) {
@@ -121,57 +323,91 @@ public class Tunnel implements Closeable {
         }
     }
 
-    private void startProxy(NioSocketAcceptor acceptor, NioSocketConnector connector) throws IOException {
-        ClientToProxyIoHandler handler = new ClientToProxyIoHandler(connector,
-                new InetSocketAddress(endpoint, remotePort));
-
-        acceptor.setHandler(handler);
-        acceptor.bind(new InetSocketAddress(proxyPort));
+    /**
+     * Stops what the opening started, also when it got only part of the way.
+     */
+    private void release(boolean closeSessions) {
+        if (this.healthChecker != null) {
+            this.healthChecker.close();
+            this.healthChecker = null;
+        }
+        if (this.probeConnector != null) {
+            this.probeConnector.dispose();
+            this.probeConnector = null;
+        }
+        if (this.addressResolver != null) {
+            this.addressResolver.close();
+            this.addressResolver = null;
+        }
+        // kept, the readers check for an active tunnel before using it
+        if (this.engine != null) {
+            this.engine.close(closeSessions);
+        }
     }
 
-    private NioSocketConnector createConnector() {
-        NioSocketConnector connector = new NioSocketConnector();
-        connector.setConnectTimeoutMillis(connectTimeout);
+    private void startProxy(TunnelEngine engine) throws IOException {
+        for (Backend backend : backends) {
+            backend.setUnhealthyThreshold(settings.getUnhealthyThreshold());
+            backend.setBreakerOpenTime(settings.getBreakerOpenTime());
+        }
+        this.loadBalancer = new LoadBalancer(backends, settings.getBalancing());
 
-        return connector;
-    }
+        // the first lookup blocks the opening thread, the refreshes do not
+        this.addressResolver = new AddressResolver(loadBalancer.getBackends());
+        this.addressResolver.resolveAll();
 
-    private NioSocketAcceptor createAcceptor() {
-        NioSocketAcceptor acceptor = new NioSocketAcceptor();
+        engine.start(proxyPort, loadBalancer);
 
-        initAcceptorSessionConfig(acceptor.getSessionConfig());
-        initWhiteList(acceptor.getFilterChain());
+        if (settings.getDnsTtl() > 0 && scheduler != null && resolverExecutor != null) {
+            this.addressResolver.start(scheduler, resolverExecutor, settings.getDnsTtl());
+        }
 
-        return acceptor;
+        // a single backend is used regardless of its health
+        if (backends.size() > 1 && settings.getHealthCheckInterval() > 0 && scheduler != null) {
+            this.probeConnector = createProbeConnector();
+            this.healthChecker = new HealthChecker(probeConnector, loadBalancer.getBackends());
+            this.healthChecker.start(scheduler, settings.getHealthCheckInterval());
+        }
     }
 
-    private void initAcceptorSessionConfig(SocketSessionConfig sessionConfig) {
-        sessionConfig.setReadBufferSize(1000000);
-        sessionConfig.setIdleTime(IdleStatus.BOTH_IDLE, 10);
-        sessionConfig.setKeepAlive(true);
+    private TunnelEngine createEngine() {
+        if (settings.getEngine() == TunnelEngine.Type.SPLICE) {
+            if (SpliceEngine.isAvailable()) {
+                return new SpliceEngine(this);
+            }
+            log.warn("Splicing is not available here, the tunnel on port {} falls back to MINA", proxyPort);
+        }
+        if (settings.getEngine() == TunnelEngine.Type.VIRTUAL_THREADS) {
+            if (BlockingEngine.isAvailable()) {
+                return new BlockingEngine(this);
+            }
+            log.warn("No virtual threads before Java 21, the tunnel on port {} falls back to MINA", proxyPort);
+        }
+        return new MinaEngine(this);
     }
 
-    private void initWhiteList(DefaultIoFilterChainBuilder chain) {
-        if (clientWhiteList != null) {
-            WhitelistFilter whitelistFilter = new WhitelistFilter();
-            whitelistFilter.setBlacklist(clientWhiteList);
-            chain.addLast("whitelistFilter", whitelistFilter);
-        }
+    private NioSocketConnector createProbeConnector() {
+        NioSocketConnector probeConnector = ioProcessor != null
+                ? new NioSocketConnector(ioExecutor, ioProcessor)
+                : new NioSocketConnector();
+        probeConnector.setConnectTimeoutMillis(settings.getHealthCheckTimeout());
+        probeConnector.setHandler(new IoHandlerAdapter());
+
+        return probeConnector;
     }
 
     private void activate() {
         this.active = true;
 
         this.statusMessage = String
-                .format("TCP Proxy to %s port %d is listening on port %d...", endpoint, remotePort, proxyPort);
+                .format("TCP Proxy to %s is listening on port %d...", targets(), proxyPort);
     }
 
     private void disactivate(String errorDetails) {
         this.active = false;
 
-        this.statusMessage = String.format("TCP Proxy to %s port %d on port %d is FAILED with message: %s!",
-                endpoint,
-                remotePort,
+        this.statusMessage = String.format("TCP Proxy to %s on port %d is FAILED with message: %s!",
+                targets(),
                 proxyPort,
                 errorDetails);
 
@@ -186,6 +422,14 @@ public class Tunnel implements Closeable {
         return active;
     }
 
+    /**
+     * Whether a failed {@link #open()} is worth another try, e.g. the bind
+     * failed on a port still in use. Configuration errors are not.
+     */
+    public boolean isRetryable() {
+        return retryable;
+    }
+
     public boolean isDown() {
         return !active;
     }
@@ -0,0 +1,99 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.tunnels;
+
+import java.io.IOException;
+
+import asl.tcpproxy.backends.LoadBalancer;
+import asl.tcpproxy.filters.Cidr;
+import asl.tcpproxy.metrics.MetricsSnapshot;
+
+/**
+ * The data plane of a {@link Tunnel}: accepts the clients on the proxy port,
+ * connects each of them to the backend chosen by the load balancer and
+ * forwards the bytes both ways until either side closes.
+ * 
+ * The tunnel owns the backends, the load balancer and the health checks, the
+ * engine everything between the two sockets.
+ */
+public interface TunnelEngine {
+
+    enum Type {
+        /** MINA NIO, supports all the tunnel settings */
+        MINA,
+        /**
+         * Linux epoll with splice(2) between the sockets, the bytes never
+         * leave the kernel. Honours the white list, the balancing, the
+         * connect timeout and the socket profile. Does not count the bytes.
+         * Falls back to MINA where the native transport is not available.
+         */
+        SPLICE,
+        /**
+         * Blocking sockets with a virtual thread per direction. Supports the
+         * same settings as SPLICE and counts the bytes. Falls back to MINA
+         * before Java 21.
+         */
+        VIRTUAL_THREADS
+    }
+
+    /**
+     * Binds the proxy port and starts forwarding.
+     */
+    void start(int proxyPort, LoadBalancer loadBalancer) throws IOException;
+
+    /**
+     * Applies the settings which can be changed without rebinding.
+     */
+    void update(int connectTimeout, Cidr[] clientWhiteList);
+
+    /**
+     * Changes the bytes per second limits where the engine supports them.
+     */
+    default void setBandwidth(long tunnelBandwidth, long clientBandwidth) {
+    }
+
+    /**
+     * Adds the engine specific values to the tunnel metrics.
+     */
+    default void addTo(MetricsSnapshot snapshot) {
+    }
+
+    /**
+     * Offers the live client sessions to the page. Called from outside the
+     * I/O threads, it must not add to the work of forwarding.
+     */
+    default void addSessions(SessionPage page) {
+    }
+
+    /**
+     * Closes a live client session and its backend session.
+     *
+     * @return false if there is no such session
+     */
+    default boolean kill(long sessionId) {
+        return false;
+    }
+
+    /**
+     * Stops listening. The established sessions are closed too or left to run
+     * until they end.
+     */
+    void close(boolean closeSessions);
+}
@@ -0,0 +1,441 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.tunnels;
+
+import java.util.Objects;
+
+import asl.tcpproxy.backends.LoadBalancer;
+
+/**
+ * Tuning knobs of a single tunnel.
+ * 
+ * The values are bound from the {@code tunnelDefaults} block of the
+ * configuration or from the {@code tunnelSettings} entry keyed by the proxy port
+ * of the tunnel.
+ */
+public class TunnelSettings {
+
+    /**
+     * The data plane of the tunnel.
+     */
+    TunnelEngine.Type engine = TunnelEngine.Type.MINA;
+
+    /**
+     * Reads of a session are suspended once the other session has more bytes
+     * than this queued for writing.
+     */
+    int writeHighWatermark = 1024 * 1024;
+
+    /**
+     * Suspended reads are resumed once the queue of the other session drops to
+     * this amount of bytes.
+     */
+    int writeLowWatermark = 256 * 1024;
+
+    /**
+     * Number of connected idle backend sessions kept ready for new clients. 0
+     * disables the pool.
+     */
+    int backendPoolMin = 0;
+
+    /**
+     * Upper bound the pool may grow to when clients find it empty.
+     */
+    int backendPoolMax = 0;
+
+    /**
+     * Milliseconds after which an unused pooled backend session is closed.
+     */
+    long backendPoolMaxIdleTime = 60000;
+
+    /**
+     * How the connections are spread over several backends of the tunnel.
+     */
+    LoadBalancer.Strategy balancing = LoadBalancer.Strategy.ROUND_ROBIN;
+
+    /**
+     * Milliseconds between the TCP probes of the backends. 0 disables the
+     * probes. Tunnels with a single backend are never probed.
+     */
+    long healthCheckInterval = 5000;
+
+    /**
+     * Connect timeout of a probe in milliseconds.
+     */
+    int healthCheckTimeout = 2000;
+
+    /**
+     * Failed connects in a row after which a backend is out of rotation.
+     */
+    int unhealthyThreshold = 2;
+
+    /**
+     * Further backends a client connect tries after a failed one. The
+     * attempts share the connect timeout of the tunnel.
+     */
+    int connectRetries = 0;
+
+    /**
+     * Base of the randomized exponential backoff between the connect
+     * attempts in milliseconds.
+     */
+    long connectRetryBackoff = 100;
+
+    /**
+     * Milliseconds a down backend fails the client connects at once before a
+     * single trial connect is let through. 0 always tries it.
+     */
+    long breakerOpenTime = 5000;
+
+    /**
+     * Milliseconds the resolved addresses of a backend are used before the
+     * host is looked up again in the background. 0 resolves only when the
+     * tunnel opens.
+     */
+    long dnsTtl = 30000;
+
+    /**
+     * Threads handling the opened and closed sessions off the selector
+     * threads, the order of the events of a session is kept. The forwarding
+     * stays on the selector threads. 0 handles everything on them.
+     */
+    int eventThreads = 0;
+
+    /**
+     * Events waiting for the event threads at most, give or take one per
+     * selector thread. New sessions are closed at once when there are more.
+     * Backend sessions are never closed for it.
+     */
+    int eventQueueSize = 10000;
+
+    /**
+     * Read buffer size every session starts with and falls back to when idle.
+     */
+    int minReadBufferSize = 1024;
+
+    /**
+     * Largest read buffer a session grows to on full reads.
+     */
+    int maxReadBufferSize = 65536;
+
+    /**
+     * Seconds neither side of a pair read anything after which both are
+     * closed. 0 keeps idle pairs forever.
+     */
+    int readIdleTimeout = 0;
+
+    /**
+     * Seconds neither side of a pair wrote anything after which both are
+     * closed. 0 keeps idle pairs forever.
+     */
+    int writeIdleTimeout = 0;
+
+    /**
+     * Seconds after which a pair is closed even when busy. 0 disables it.
+     */
+    int maxLifetime = 0;
+
+    /**
+     * Socket options of the client and the backend sessions.
+     */
+    SocketProfile socket = new SocketProfile();
+
+    /**
+     * Caps of the concurrent and the new client sessions.
+     */
+    ConnectionLimits limits = new ConnectionLimits();
+
+    /**
+     * Bytes per second read by all the sessions of the tunnel. 0 means
+     * unlimited.
+     */
+    long tunnelBandwidth = 0;
+
+    /**
+     * Bytes per second read by the sessions of a single client address. 0
+     * means unlimited.
+     */
+    long clientBandwidth = 0;
+
+    public TunnelEngine.Type getEngine() {
+        return engine;
+    }
+
+    public void setEngine(TunnelEngine.Type engine) {
+        this.engine = engine;
+    }
+
+    public int getWriteHighWatermark() {
+        return writeHighWatermark;
+    }
+
+    public void setWriteHighWatermark(int writeHighWatermark) {
+        this.writeHighWatermark = writeHighWatermark;
+    }
+
+    public int getWriteLowWatermark() {
+        return writeLowWatermark;
+    }
+
+    public void setWriteLowWatermark(int writeLowWatermark) {
+        this.writeLowWatermark = writeLowWatermark;
+    }
+
+    public int getBackendPoolMin() {
+        return backendPoolMin;
+    }
+
+    public void setBackendPoolMin(int backendPoolMin) {
+        this.backendPoolMin = backendPoolMin;
+    }
+
+    public int getBackendPoolMax() {
+        return backendPoolMax;
+    }
+
+    public void setBackendPoolMax(int backendPoolMax) {
+        this.backendPoolMax = backendPoolMax;
+    }
+
+    public long getBackendPoolMaxIdleTime() {
+        return backendPoolMaxIdleTime;
+    }
+
+    public void setBackendPoolMaxIdleTime(long backendPoolMaxIdleTime) {
+        this.backendPoolMaxIdleTime = backendPoolMaxIdleTime;
+    }
+
+    public LoadBalancer.Strategy getBalancing() {
+        return balancing;
+    }
+
+    public void setBalancing(LoadBalancer.Strategy balancing) {
+        this.balancing = balancing;
+    }
+
+    public long getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    public void setHealthCheckInterval(long healthCheckInterval) {
+        this.healthCheckInterval = healthCheckInterval;
+    }
+
+    public int getHealthCheckTimeout() {
+        return healthCheckTimeout;
+    }
+
+    public void setHealthCheckTimeout(int healthCheckTimeout) {
+        this.healthCheckTimeout = healthCheckTimeout;
+    }
+
+    public int getUnhealthyThreshold() {
+        return unhealthyThreshold;
+    }
+
+    public void setUnhealthyThreshold(int unhealthyThreshold) {
+        this.unhealthyThreshold = unhealthyThreshold;
+    }
+
+    public int getConnectRetries() {
+        return connectRetries;
+    }
+
+    public void setConnectRetries(int connectRetries) {
+        this.connectRetries = connectRetries;
+    }
+
+    public long getConnectRetryBackoff() {
+        return connectRetryBackoff;
+    }
+
+    public void setConnectRetryBackoff(long connectRetryBackoff) {
+        this.connectRetryBackoff = connectRetryBackoff;
+    }
+
+    public long getBreakerOpenTime() {
+        return breakerOpenTime;
+    }
+
+    public void setBreakerOpenTime(long breakerOpenTime) {
+        this.breakerOpenTime = breakerOpenTime;
+    }
+
+    public long getDnsTtl() {
+        return dnsTtl;
+    }
+
+    public void setDnsTtl(long dnsTtl) {
+        this.dnsTtl = dnsTtl;
+    }
+
+    public int getEventThreads() {
+        return eventThreads;
+    }
+
+    public void setEventThreads(int eventThreads) {
+        this.eventThreads = eventThreads;
+    }
+
+    public int getEventQueueSize() {
+        return eventQueueSize;
+    }
+
+    public void setEventQueueSize(int eventQueueSize) {
+        this.eventQueueSize = eventQueueSize;
+    }
+
+    public int getMinReadBufferSize() {
+        return minReadBufferSize;
+    }
+
+    public void setMinReadBufferSize(int minReadBufferSize) {
+        this.minReadBufferSize = minReadBufferSize;
+    }
+
+    public int getMaxReadBufferSize() {
+        return maxReadBufferSize;
+    }
+
+    public void setMaxReadBufferSize(int maxReadBufferSize) {
+        this.maxReadBufferSize = maxReadBufferSize;
+    }
+
+    public int getReadIdleTimeout() {
+        return readIdleTimeout;
+    }
+
+    public void setReadIdleTimeout(int readIdleTimeout) {
+        this.readIdleTimeout = readIdleTimeout;
+    }
+
+    public int getWriteIdleTimeout() {
+        return writeIdleTimeout;
+    }
+
+    public void setWriteIdleTimeout(int writeIdleTimeout) {
+        this.writeIdleTimeout = writeIdleTimeout;
+    }
+
+    public int getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public void setMaxLifetime(int maxLifetime) {
+        this.maxLifetime = maxLifetime;
+    }
+
+    public SocketProfile getSocket() {
+        return socket;
+    }
+
+    public void setSocket(SocketProfile socket) {
+        this.socket = socket;
+    }
+
+    public ConnectionLimits getLimits() {
+        return limits;
+    }
+
+    public void setLimits(ConnectionLimits limits) {
+        this.limits = limits;
+    }
+
+    public long getTunnelBandwidth() {
+        return tunnelBandwidth;
+    }
+
+    public void setTunnelBandwidth(long tunnelBandwidth) {
+        this.tunnelBandwidth = tunnelBandwidth;
+    }
+
+    public long getClientBandwidth() {
+        return clientBandwidth;
+    }
+
+    public void setClientBandwidth(long clientBandwidth) {
+        this.clientBandwidth = clientBandwidth;
+    }
+
+    /**
+     * The bandwidths are left out, a running tunnel applies them without
+     * rebinding.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TunnelSettings)) {
+            return false;
+        }
+        TunnelSettings other = (TunnelSettings) o;
+        return engine == other.engine
+                && writeHighWatermark == other.writeHighWatermark
+                && writeLowWatermark == other.writeLowWatermark
+                && backendPoolMin == other.backendPoolMin
+                && backendPoolMax == other.backendPoolMax
+                && backendPoolMaxIdleTime == other.backendPoolMaxIdleTime
+                && balancing == other.balancing
+                && healthCheckInterval == other.healthCheckInterval
+                && healthCheckTimeout == other.healthCheckTimeout
+                && unhealthyThreshold == other.unhealthyThreshold
+                && connectRetries == other.connectRetries
+                && connectRetryBackoff == other.connectRetryBackoff
+                && breakerOpenTime == other.breakerOpenTime
+                && dnsTtl == other.dnsTtl
+                && eventThreads == other.eventThreads
+                && eventQueueSize == other.eventQueueSize
+                && minReadBufferSize == other.minReadBufferSize
+                && maxReadBufferSize == other.maxReadBufferSize
+                && readIdleTimeout == other.readIdleTimeout
+                && writeIdleTimeout == other.writeIdleTimeout
+                && maxLifetime == other.maxLifetime
+                && socket.equals(other.socket)
+                && limits.equals(other.limits);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(engine,
+                writeHighWatermark,
+                writeLowWatermark,
+                backendPoolMin,
+                backendPoolMax,
+                backendPoolMaxIdleTime,
+                balancing,
+                healthCheckInterval,
+                healthCheckTimeout,
+                unhealthyThreshold,
+                connectRetries,
+                connectRetryBackoff,
+                breakerOpenTime,
+                dnsTtl,
+                eventThreads,
+                eventQueueSize,
+                minReadBufferSize,
+                maxReadBufferSize,
+                readIdleTimeout,
+                writeIdleTimeout,
+                maxLifetime,
+                socket,
+                limits);
+    }
+}
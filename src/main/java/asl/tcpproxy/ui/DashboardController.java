@@ -19,19 +19,28 @@
  */
 package asl.tcpproxy.ui;
 
+import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
 import org.springframework.ui.Model;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.server.ResponseStatusException;
 
 import asl.tcpproxy.services.StatusService;
+import asl.tcpproxy.services.TunnelsService;
 
 @Controller
 public class DashboardController {
 
 	StatusService statusService;
 
-	public DashboardController(StatusService statusService) {
+	TunnelsService tunnelsService;
+
+	public DashboardController(StatusService statusService, TunnelsService tunnelsService) {
         this.statusService = statusService;
+        this.tunnelsService = tunnelsService;
     }
 
     @GetMapping("/")
@@ -41,7 +50,25 @@ public class DashboardController {
         model.addAttribute("timeout", statusService.timeout());
         model.addAttribute("appVersion", statusService.appVersion());
         model.addAttribute("tunnels", statusService.tunnels());
+        model.addAttribute("metrics", statusService.tunnelMetrics());
+        model.addAttribute("buffers", statusService.bufferPoolMetrics());
         
         return "index";
 	}
+
+    @PostMapping("/tunnels/{proxyPort}/bandwidth")
+    public String bandwidth(@PathVariable int proxyPort,
+            @RequestParam long tunnelBandwidth,
+            @RequestParam long clientBandwidth) {
+
+        // 0 is unlimited, a negative rate would never throttle
+        if (tunnelBandwidth < 0 || clientBandwidth < 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "The bandwidth must not be negative");
+        }
+        if (!tunnelsService.setBandwidth(proxyPort, tunnelBandwidth, clientBandwidth)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No tunnel on port " + proxyPort);
+        }
+
+        return "redirect:/";
+    }
 }
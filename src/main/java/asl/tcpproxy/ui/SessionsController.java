@@ -0,0 +1,65 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.ui;
+
+import java.util.List;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import asl.tcpproxy.services.TunnelsService;
+import asl.tcpproxy.tunnels.SessionInfo;
+
+@RestController
+public class SessionsController {
+
+	/** Upper bound of a page, a tunnel may have 100k sessions */
+	private static final int MAX_LIMIT = 1000;
+
+	TunnelsService tunnelsService;
+
+	public SessionsController(TunnelsService tunnelsService) {
+        this.tunnelsService = tunnelsService;
+    }
+
+    /**
+     * The live sessions of a tunnel ordered by id. The next page is the one
+     * after the last id of this one. Not found for a port without a tunnel.
+     */
+    @GetMapping("/api/tunnels/{proxyPort}/sessions")
+	public ResponseEntity<List<SessionInfo>> sessions(@PathVariable int proxyPort,
+            @RequestParam(defaultValue = "0") long after,
+            @RequestParam(defaultValue = "100") int limit) {
+        return tunnelsService.sessions(proxyPort, after, Math.min(limit, MAX_LIMIT))
+                .map(ResponseEntity::ok)
+                .orElseGet(() -> ResponseEntity.notFound().build());
+	}
+
+    @DeleteMapping("/api/tunnels/{proxyPort}/sessions/{sessionId}")
+	public ResponseEntity<Void> kill(@PathVariable int proxyPort, @PathVariable long sessionId) {
+        return tunnelsService.kill(proxyPort, sessionId)
+                ? ResponseEntity.noContent().build()
+                : ResponseEntity.notFound().build();
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.accesslog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class RecordRingTest {
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        RecordRing ring = new RecordRing(5);
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ring.offer(record(i)));
+        }
+        assertFalse(ring.offer(record(8)));
+    }
+
+    @Test
+    public void drainsInOrderUpToMax() {
+        RecordRing ring = new RecordRing(8);
+        List<AccessLogRecord> offered = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            offered.add(record(i));
+            ring.offer(offered.get(i));
+        }
+
+        List<AccessLogRecord> batch = new ArrayList<>();
+        assertEquals(3, ring.drainTo(batch, 3));
+        assertEquals(2, ring.drainTo(batch, 10));
+        assertEquals(0, ring.drainTo(batch, 10));
+
+        assertEquals(offered, batch);
+    }
+
+    @Test
+    public void drainingMakesRoomAcrossTheWrap() {
+        RecordRing ring = new RecordRing(4);
+        List<AccessLogRecord> batch = new ArrayList<>();
+
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(ring.offer(record(i)));
+            }
+            assertFalse(ring.offer(record(4)));
+
+            batch.clear();
+            assertEquals(4, ring.drainTo(batch, 10));
+        }
+    }
+
+    @Test
+    public void concurrentProducersLoseNothingAccepted() throws Exception {
+        int producers = 4;
+        int perProducer = 20000;
+        RecordRing ring = new RecordRing(256);
+        Map<AccessLogRecord, Integer> accepted = new IdentityHashMap<>();
+        List<List<AccessLogRecord>> acceptedInOrder = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger running = new AtomicInteger(producers);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            List<AccessLogRecord> mine = new ArrayList<>();
+            acceptedInOrder.add(mine);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perProducer; i++) {
+                        AccessLogRecord record = record(i);
+                        if (ring.offer(record)) {
+                            mine.add(record);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        List<AccessLogRecord> drained = new ArrayList<>();
+        start.countDown();
+        while (running.get() > 0) {
+            ring.drainTo(drained, 64);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        while (ring.drainTo(drained, 64) > 0) {
+            // the rest
+        }
+
+        for (int p = 0; p < producers; p++) {
+            for (AccessLogRecord record : acceptedInOrder.get(p)) {
+                accepted.put(record, p);
+            }
+        }
+        assertEquals(accepted.size(), drained.size());
+
+        // every record once and the records of a producer in its order
+        int[] next = new int[producers];
+        for (AccessLogRecord record : drained) {
+            Integer p = accepted.remove(record);
+            assertTrue(p != null);
+            assertSame(acceptedInOrder.get(p).get(next[p]++), record);
+        }
+        assertTrue(accepted.isEmpty());
+    }
+
+    private static AccessLogRecord record(int i) {
+        return new AccessLogRecord(0, 8080, null, null, i, 0, 0, "closed");
+    }
+}
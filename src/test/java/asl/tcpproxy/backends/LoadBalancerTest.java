@@ -0,0 +1,98 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.backends;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import asl.tcpproxy.backends.LoadBalancer.Strategy;
+
+public class LoadBalancerTest {
+
+	@Test
+	public void skipsUnhealthyBackends() {
+		Backend up = new Backend("up", 1);
+		Backend down = down("down");
+
+		for (Strategy strategy : Strategy.values()) {
+			LoadBalancer balancer = new LoadBalancer(Arrays.asList(down, up), strategy);
+			for (int i = 0; i < 10; i++) {
+				assertSame(strategy.name(), up, balancer.select());
+			}
+		}
+	}
+
+	@Test
+	public void allDownStillSelects() {
+		for (Strategy strategy : Strategy.values()) {
+			LoadBalancer balancer = new LoadBalancer(Arrays.asList(down("a"), down("b")), strategy);
+			assertNotNull(strategy.name(), balancer.select());
+		}
+	}
+
+	@Test
+	public void leastConnectionsPicksTheIdlest() {
+		Backend busy = new Backend("busy", 1);
+		Backend idle = new Backend("idle", 1);
+		busy.connectionOpened();
+		LoadBalancer balancer = new LoadBalancer(Arrays.asList(busy, idle), Strategy.LEAST_CONNECTIONS);
+
+		assertSame(idle, balancer.select());
+		assertSame(idle, balancer.select());
+	}
+
+	@Test
+	public void allGoingDownWhileSelectingStillSelects() {
+		for (Strategy strategy : Strategy.values()) {
+			LoadBalancer balancer = new LoadBalancer(Arrays.asList(goingDown("a"), goingDown("b")), strategy);
+			for (int i = 0; i < 10; i++) {
+				assertNotNull(strategy.name(), balancer.select());
+			}
+		}
+	}
+
+	private static Backend down(String host) {
+		Backend backend = new Backend(host, 1);
+		backend.setUnhealthyThreshold(1);
+		backend.failed();
+		return backend;
+	}
+
+	/**
+	 * Healthy at the first look only, as if the health checker marked it down
+	 * right after.
+	 */
+	private static Backend goingDown(String host) {
+		return new Backend(host, 1) {
+			private boolean looked;
+
+			@Override
+			public boolean isHealthy() {
+				boolean healthy = !looked;
+				looked = true;
+				return healthy;
+			}
+		};
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.buffers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.nio.ByteBuffer;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Test;
+
+public class PooledBufferAllocatorTest {
+
+    @Test
+    public void sizesAreRoundedUpToAPowerOfTwo() {
+        PooledBufferAllocator allocator = allocator(16, 1024 * 1024);
+
+        IoBuffer buffer = allocator.allocate(100, false);
+
+        assertEquals(128, buffer.buf().capacity());
+        assertEquals(100, buffer.limit());
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void aFreedBufferIsReusedByTheSameThread() {
+        PooledBufferAllocator allocator = allocator(16, 1024 * 1024);
+        IoBuffer buffer = allocator.allocate(100, false);
+        ByteBuffer memory = buffer.buf();
+        buffer.put((byte) 1);
+
+        buffer.free();
+        assertEquals(128, allocator.snapshot().getPooledBytes());
+        IoBuffer reused = allocator.allocate(120, false);
+
+        assertSame(memory, reused.buf());
+        assertEquals(0, reused.position());
+        assertEquals(120, reused.limit());
+        assertEquals(1, allocator.snapshot().getHits());
+        assertEquals(1, allocator.snapshot().getMisses());
+        assertEquals(0, allocator.snapshot().getPooledBytes());
+    }
+
+    @Test
+    public void freeingTwiceReleasesOnce() {
+        PooledBufferAllocator allocator = allocator(16, 1024 * 1024);
+        IoBuffer buffer = allocator.allocate(64, false);
+
+        buffer.free();
+        buffer.free();
+
+        assertEquals(64, allocator.snapshot().getPooledBytes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void aFreedBufferCanNotBeUsed() {
+        IoBuffer buffer = allocator(16, 1024 * 1024).allocate(64, false);
+
+        buffer.free();
+        buffer.get();
+    }
+
+    @Test
+    public void derivedAndWrappedBuffersAreNotPooled() {
+        PooledBufferAllocator allocator = allocator(16, 1024 * 1024);
+        IoBuffer buffer = allocator.allocate(64, false);
+
+        buffer.duplicate().free();
+        allocator.wrap(ByteBuffer.allocate(64)).free();
+        assertEquals(0, allocator.snapshot().getPooledBytes());
+
+        // the parent is still usable
+        buffer.put((byte) 1);
+    }
+
+    @Test
+    public void largeBuffersAreNotPooled() {
+        BufferPoolSettings settings = new BufferPoolSettings();
+        settings.setMaxPooledSize(1024);
+        PooledBufferAllocator allocator = new PooledBufferAllocator(settings);
+
+        IoBuffer buffer = allocator.allocate(4096, false);
+        buffer.free();
+
+        assertEquals(1, allocator.snapshot().getUnpooled());
+        assertEquals(0, allocator.snapshot().getPooledBytes());
+    }
+
+    @Test
+    public void theSharedPoolIsBounded() {
+        // no thread cache, everything goes to the shared pool
+        PooledBufferAllocator allocator = allocator(0, 128);
+        IoBuffer[] buffers = { allocator.allocate(64, false),
+                allocator.allocate(64, false),
+                allocator.allocate(64, false) };
+
+        for (IoBuffer buffer : buffers) {
+            buffer.free();
+        }
+
+        assertEquals(128, allocator.snapshot().getPooledBytes());
+    }
+
+    @Test
+    public void buffersMoveBetweenThreadsThroughTheSharedPool() throws Exception {
+        PooledBufferAllocator allocator = allocator(0, 1024 * 1024);
+        IoBuffer buffer = allocator.allocate(64, false);
+        ByteBuffer memory = buffer.buf();
+
+        Thread other = new Thread(buffer::free);
+        other.start();
+        other.join();
+        IoBuffer reused = allocator.allocate(64, false);
+
+        assertSame(memory, reused.buf());
+        assertEquals(1, allocator.snapshot().getHits());
+    }
+
+    @Test
+    public void directBytesAreCountedUntilDropped() {
+        PooledBufferAllocator allocator = allocator(0, 1024 * 1024);
+        IoBuffer buffer = allocator.allocate(64, true);
+        assertEquals(64, allocator.snapshot().getDirectBytes());
+
+        buffer.free();
+        assertEquals(64, allocator.snapshot().getDirectBytes());
+        // a heap allocation doesn't take the pooled direct buffer
+        assertFalse(allocator.allocate(64, false).isDirect());
+
+        allocator.clear();
+        assertEquals(0, allocator.snapshot().getDirectBytes());
+        assertEquals(0, allocator.snapshot().getPooledBytes());
+    }
+
+    private static PooledBufferAllocator allocator(int threadCacheSize, long maxPooledBytes) {
+        BufferPoolSettings settings = new BufferPoolSettings();
+        settings.setThreadCacheSize(threadCacheSize);
+        settings.setMaxPooledBytes(maxPooledBytes);
+        return new PooledBufferAllocator(settings);
+    }
+}
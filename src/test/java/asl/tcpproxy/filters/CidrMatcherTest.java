@@ -0,0 +1,136 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.filters;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class CidrMatcherTest {
+
+	@Test
+	public void emptyMatchesNothing() throws Exception {
+		assertTrue(CidrMatcher.EMPTY.isEmpty());
+		assertFalse(CidrMatcher.EMPTY.matches(address("10.0.0.1")));
+		assertFalse(CidrMatcher.EMPTY.matches(address("::1")));
+	}
+
+	@Test
+	public void prefixBoundaries() throws Exception {
+		CidrMatcher matcher = matcher("192.168.1.0/24");
+
+		assertFalse(matcher.isEmpty());
+		assertTrue(matcher.matches(address("192.168.1.0")));
+		assertTrue(matcher.matches(address("192.168.1.255")));
+		assertFalse(matcher.matches(address("192.168.0.255")));
+		assertFalse(matcher.matches(address("192.168.2.0")));
+	}
+
+	@Test
+	public void prefixNotOnAByte() throws Exception {
+		CidrMatcher matcher = matcher("10.0.0.0/13");
+
+		assertTrue(matcher.matches(address("10.7.255.255")));
+		assertFalse(matcher.matches(address("10.8.0.0")));
+	}
+
+	@Test
+	public void zeroPrefixMatchesItsFamilyOnly() throws Exception {
+		CidrMatcher matcher = matcher("0.0.0.0/0");
+
+		assertTrue(matcher.matches(address("0.0.0.0")));
+		assertTrue(matcher.matches(address("255.255.255.255")));
+		assertFalse(matcher.matches(address("2001:db8::1")));
+	}
+
+	@Test
+	public void singleHost() throws Exception {
+		CidrMatcher matcher = matcher("172.16.0.1/32", "172.16.0.3");
+
+		assertTrue(matcher.matches(address("172.16.0.1")));
+		assertTrue(matcher.matches(address("172.16.0.3")));
+		assertFalse(matcher.matches(address("172.16.0.0")));
+		assertFalse(matcher.matches(address("172.16.0.2")));
+	}
+
+	@Test
+	public void highBitAddresses() throws Exception {
+		// the IPv4 lookup works on a signed int
+		CidrMatcher matcher = matcher("255.255.255.255/32", "128.0.0.0/1");
+
+		assertTrue(matcher.matches(address("255.255.255.255")));
+		assertTrue(matcher.matches(address("128.0.0.0")));
+		assertFalse(matcher.matches(address("127.255.255.255")));
+	}
+
+	@Test
+	public void ipv6() throws Exception {
+		CidrMatcher matcher = matcher("2001:db8::/32", "::1/128");
+
+		assertTrue(matcher.matches(address("2001:db8::")));
+		assertTrue(matcher.matches(address("2001:db8:ffff:ffff:ffff:ffff:ffff:ffff")));
+		assertFalse(matcher.matches(address("2001:db9::")));
+		assertTrue(matcher.matches(address("::1")));
+		assertFalse(matcher.matches(address("::2")));
+		assertFalse(matcher.matches(address("32.1.13.184")));
+	}
+
+	@Test
+	public void overlappingSubnetsInEitherOrder() throws Exception {
+		for (CidrMatcher matcher : new CidrMatcher[] {
+				matcher("10.0.0.0/8", "10.1.2.0/24"),
+				matcher("10.1.2.0/24", "10.0.0.0/8") }) {
+			assertTrue(matcher.matches(address("10.1.2.3")));
+			assertTrue(matcher.matches(address("10.200.0.1")));
+			assertFalse(matcher.matches(address("11.0.0.0")));
+		}
+	}
+
+	@Test
+	public void manySubnetsGrowTheTrie() throws Exception {
+		List<Cidr> subnets = new ArrayList<>();
+		for (int i = 0; i < 256; i += 2) {
+			subnets.add(Cidr.parse("10." + i + ".0.0/16"));
+		}
+		CidrMatcher matcher = CidrMatcher.of(subnets);
+
+		for (int i = 0; i < 256; i++) {
+			assertTrue(matcher.matches(address("10." + i + ".1.1")) == (i % 2 == 0));
+		}
+	}
+
+	private static CidrMatcher matcher(String... cidrs) throws UnknownHostException {
+		List<Cidr> subnets = new ArrayList<>();
+		for (String cidr : cidrs) {
+			subnets.add(Cidr.parse(cidr));
+		}
+		return CidrMatcher.of(subnets);
+	}
+
+	private static InetAddress address(String address) throws UnknownHostException {
+		return InetAddress.getByName(address);
+	}
+}
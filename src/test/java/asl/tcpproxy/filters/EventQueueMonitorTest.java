@@ -0,0 +1,127 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import org.apache.mina.core.service.IoConnector;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+import org.junit.Test;
+
+import asl.tcpproxy.backends.Backend;
+import asl.tcpproxy.handlers.AbstractProxyIoHandler;
+import asl.tcpproxy.handlers.IdlePolicy;
+import asl.tcpproxy.handlers.ServerToProxyIoHandler;
+import asl.tcpproxy.metrics.TunnelMetrics;
+
+public class EventQueueMonitorTest {
+
+	@Test
+	public void acceptsEverythingBelowTheLimit() {
+		EventQueueMonitor monitor = new EventQueueMonitor(2);
+		DummySession client = new DummySession();
+		monitor.offered(this, event(IoEventType.SESSION_OPENED, client));
+
+		assertTrue(monitor.accept(this, event(IoEventType.SESSION_OPENED, client)));
+		assertEquals(1, monitor.getQueued());
+		assertEquals(0, monitor.getShed());
+	}
+
+	@Test
+	public void shedsClientsOfAFullQueue() {
+		EventQueueMonitor monitor = full(1);
+		DummySession client = new DummySession();
+
+		assertFalse(monitor.accept(this, event(IoEventType.SESSION_OPENED, client)));
+		assertTrue(client.isClosing());
+		// the handler never saw the session open
+		assertFalse(monitor.accept(this, event(IoEventType.SESSION_CLOSED, client)));
+		assertEquals(1, monitor.getShed());
+	}
+
+	@Test
+	public void closesOfOpenedSessionsAreAlwaysQueued() {
+		EventQueueMonitor monitor = full(1);
+
+		assertTrue(monitor.accept(this, event(IoEventType.SESSION_CLOSED, new DummySession())));
+		assertEquals(0, monitor.getShed());
+	}
+
+	@Test
+	public void neverShedsBackends() {
+		EventQueueMonitor monitor = full(1);
+		DummySession backend = backendSession();
+
+		assertTrue(monitor.accept(this, event(IoEventType.SESSION_OPENED, backend)));
+		assertFalse(backend.isClosing());
+		assertTrue(monitor.accept(this, event(IoEventType.SESSION_CLOSED, backend)));
+		assertEquals(0, monitor.getShed());
+	}
+
+	@Test
+	public void closedBackendOfAFullQueueClosesItsClient() throws Exception {
+		EventQueueMonitor monitor = full(1);
+		Backend target = new Backend("localhost", 1);
+		IoSession client = mock(IoSession.class);
+		DummySession backend = backendSession();
+		// the connect future pairs them ahead of the opening
+		target.attach(backend);
+		backend.setAttribute(AbstractProxyIoHandler.OTHER_IO_SESSION, client);
+
+		ServerToProxyIoHandler handler = new ServerToProxyIoHandler(true,
+				65536,
+				16384,
+				new IdlePolicy(0, 0, 0),
+				new TunnelMetrics());
+		for (IoEventType type : new IoEventType[] { IoEventType.SESSION_OPENED, IoEventType.SESSION_CLOSED }) {
+			if (monitor.accept(this, event(type, backend)) && type == IoEventType.SESSION_CLOSED) {
+				handler.sessionClosed(backend);
+			}
+		}
+
+		verify(client).closeOnFlush();
+		assertEquals(0, target.getActiveConnections());
+	}
+
+	private EventQueueMonitor full(int queueSize) {
+		EventQueueMonitor monitor = new EventQueueMonitor(queueSize);
+		for (int i = 0; i < queueSize; i++) {
+			monitor.offered(this, event(IoEventType.MESSAGE_RECEIVED, new DummySession()));
+		}
+		return monitor;
+	}
+
+	private static DummySession backendSession() {
+		DummySession session = new DummySession();
+		session.setService(mock(IoConnector.class));
+		return session;
+	}
+
+	private static IoEvent event(IoEventType type, IoSession session) {
+		return new IoEvent(type, session, null);
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.filters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	@Test
+	public void unlimitedNeverWaits() {
+		TokenBucket bucket = new TokenBucket(0, 0);
+
+		assertEquals(0, bucket.take(Long.MAX_VALUE / 2));
+		assertEquals(0, bucket.take(Long.MAX_VALUE / 2));
+		assertTrue(bucket.tryTake());
+	}
+
+	@Test
+	public void takeWithinCapacityDoesNotWait() {
+		TokenBucket bucket = new TokenBucket(1000, 1000);
+
+		assertEquals(0, bucket.take(600));
+		assertEquals(0, bucket.take(400));
+	}
+
+	@Test
+	public void debtIsPaidAtTheRate() {
+		TokenBucket bucket = new TokenBucket(1000, 1000);
+		bucket.take(1000);
+
+		long waitNanos = bucket.take(500);
+
+		// half a second less what was refilled in between
+		assertTrue(waitNanos > TimeUnit.MILLISECONDS.toNanos(400));
+		assertTrue(waitNanos <= TimeUnit.MILLISECONDS.toNanos(500));
+	}
+
+	@Test
+	public void tryTakeStopsAtZero() {
+		TokenBucket bucket = new TokenBucket(1, 2);
+
+		assertTrue(bucket.tryTake());
+		assertTrue(bucket.tryTake());
+		assertFalse(bucket.tryTake());
+	}
+
+	@Test
+	public void limitingAnUnlimitedBucketStartsFull() {
+		TokenBucket bucket = new TokenBucket(0, 0);
+		bucket.take(1000000);
+
+		bucket.setRate(10, 10);
+
+		assertEquals(10, bucket.getRate());
+		for (int i = 0; i < 10; i++) {
+			assertTrue(bucket.tryTake());
+		}
+		assertFalse(bucket.tryTake());
+	}
+
+	@Test
+	public void unlimitingForgivesTheDebt() {
+		TokenBucket bucket = new TokenBucket(10, 10);
+		assertTrue(bucket.take(1000) > 0);
+
+		bucket.setRate(0, 0);
+
+		assertEquals(0, bucket.take(1000));
+	}
+
+	@Test
+	public void smallerCapacityCapsTheTokens() {
+		TokenBucket bucket = new TokenBucket(1000, 1000);
+
+		bucket.setRate(1, 1);
+
+		assertTrue(bucket.tryTake());
+		assertFalse(bucket.tryTake());
+	}
+
+	@Test
+	public void longIdleAtAHighRateRefillsToCapacity() {
+		AtomicLong now = new AtomicLong();
+		long rate = 100L << 20;
+		TokenBucket bucket = new TokenBucket(rate, rate, now::get);
+		bucket.take(rate);
+
+		// idle nanos times the rate is past Long.MAX_VALUE
+		now.addAndGet(TimeUnit.MINUTES.toNanos(10));
+
+		assertEquals(0, bucket.take(rate));
+		assertTrue(bucket.take(1) > 0);
+	}
+
+	@Test
+	public void refillFollowsTheClock() {
+		AtomicLong now = new AtomicLong();
+		TokenBucket bucket = new TokenBucket(1000, 1000, now::get);
+		bucket.take(1000);
+
+		now.addAndGet(TimeUnit.MILLISECONDS.toNanos(250));
+
+		assertEquals(0, bucket.take(250));
+		assertEquals(TimeUnit.MILLISECONDS.toNanos(1), bucket.take(1));
+	}
+}
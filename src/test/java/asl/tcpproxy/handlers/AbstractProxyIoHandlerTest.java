@@ -0,0 +1,109 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.handlers;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.DummySession;
+import org.junit.Before;
+import org.junit.Test;
+
+import asl.tcpproxy.metrics.TunnelMetrics;
+
+public class AbstractProxyIoHandlerTest {
+
+	private static final int HIGH_WATERMARK = 1024;
+
+	private ServerToProxyIoHandler handler;
+
+	private DummySession session;
+
+	private DummySession otherSession;
+
+	@Before
+	public void setUp() throws Exception {
+		handler = new ServerToProxyIoHandler(true,
+				HIGH_WATERMARK,
+				HIGH_WATERMARK / 4,
+				new IdlePolicy(0, 0, 0),
+				new TunnelMetrics());
+		session = new DummySession();
+		otherSession = new DummySession();
+		handler.sessionCreated(session);
+		handler.sessionCreated(otherSession);
+		session.setAttribute(AbstractProxyIoHandler.OTHER_IO_SESSION, otherSession);
+		otherSession.setAttribute(AbstractProxyIoHandler.OTHER_IO_SESSION, session);
+		session.resumeRead();
+	}
+
+	@Test
+	public void drainedPeerResumesABackedUpSession() throws Exception {
+		backUp();
+
+		drain();
+
+		assertFalse(session.isReadSuspended());
+	}
+
+	@Test
+	public void drainedPeerLeavesAThrottledSessionSuspended() throws Exception {
+		backUp();
+		assertTrue(AbstractProxyIoHandler.throttleRead(session));
+
+		drain();
+
+		assertTrue(session.isReadSuspended());
+
+		AbstractProxyIoHandler.unthrottleRead(session);
+
+		assertFalse(session.isReadSuspended());
+	}
+
+	@Test
+	public void unthrottlingLeavesABackedUpSessionSuspended() throws Exception {
+		assertTrue(AbstractProxyIoHandler.throttleRead(session));
+		assertFalse(AbstractProxyIoHandler.throttleRead(session));
+		backUp();
+
+		AbstractProxyIoHandler.unthrottleRead(session);
+
+		assertTrue(session.isReadSuspended());
+
+		drain();
+
+		assertFalse(session.isReadSuspended());
+	}
+
+	/**
+	 * Forwards more than the high watermark to the other session, its writes
+	 * are still suspended so it all stays queued.
+	 */
+	private void backUp() throws Exception {
+		handler.messageReceived(session, IoBuffer.allocate(HIGH_WATERMARK * 2));
+		assertTrue(session.isReadSuspended());
+	}
+
+	private void drain() throws Exception {
+		otherSession.increaseScheduledWriteBytes(-(int) otherSession.getScheduledWriteBytes());
+		handler.messageSent(otherSession, "sent");
+	}
+}
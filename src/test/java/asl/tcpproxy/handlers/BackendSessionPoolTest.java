@@ -0,0 +1,137 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.handlers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import asl.tcpproxy.backends.Backend;
+import asl.tcpproxy.backends.LoadBalancer;
+import asl.tcpproxy.backends.LoadBalancer.Strategy;
+import asl.tcpproxy.metrics.TunnelMetrics;
+
+public class BackendSessionPoolTest {
+
+	private ServerSocket server;
+
+	private NioSocketConnector connector;
+
+	private BackendSessionPool pool;
+
+	@Before
+	public void setUp() throws IOException {
+		server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		// a failed prewarm fails the test instead of hanging it
+		server.setSoTimeout(5000);
+		connector = new NioSocketConnector();
+		connector.setHandler(new ServerToProxyIoHandler(true,
+				65536,
+				16384,
+				new IdlePolicy(0, 0, 0),
+				new TunnelMetrics()));
+		Backend backend = new Backend(InetAddress.getLoopbackAddress().getHostAddress(), server.getLocalPort());
+		// the tunnel resolves its backends before it opens
+		assertTrue(backend.resolve());
+		pool = new BackendSessionPool(connector,
+				new LoadBalancer(Arrays.asList(backend), Strategy.ROUND_ROBIN),
+				1,
+				1,
+				60000);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		pool.close();
+		connector.dispose();
+		server.close();
+	}
+
+	@Test
+	public void backendHangingUpDropsThePooledSession() throws Exception {
+		pool.start(null);
+		try (Socket accepted = server.accept()) {
+			assertTrue(accepted.isConnected());
+			awaitAvailable();
+		}
+
+		// the FIN closes the session while it waits
+		long deadline = System.currentTimeMillis() + 5000;
+		while (!connector.getManagedSessions().isEmpty() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		assertTrue(connector.getManagedSessions().isEmpty());
+		assertNull(pool.take());
+	}
+
+	@Test
+	public void greetingOfAPooledBackendReachesTheClient() throws Exception {
+		pool.start(null);
+		try (Socket accepted = server.accept()) {
+			accepted.getOutputStream().write("hello".getBytes(StandardCharsets.US_ASCII));
+			awaitAvailable();
+
+			IoSession backend = pool.take();
+			assertNotNull(backend);
+			IoSession client = mock(IoSession.class);
+			AbstractProxyIoHandler.pairBackend(backend, client);
+
+			// held before or forwarded after the pairing
+			verify(client, timeout(5000).atLeastOnce()).write(any());
+			ArgumentCaptor<Object> written = ArgumentCaptor.forClass(Object.class);
+			verify(client, atLeastOnce()).write(written.capture());
+			StringBuilder received = new StringBuilder();
+			for (Object buffer : written.getAllValues()) {
+				received.append(((IoBuffer) buffer).getString(StandardCharsets.US_ASCII.newDecoder()));
+			}
+			assertEquals("hello", received.toString());
+		}
+	}
+
+	private void awaitAvailable() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (pool.available() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(1, pool.available());
+	}
+}
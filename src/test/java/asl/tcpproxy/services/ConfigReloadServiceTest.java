@@ -0,0 +1,74 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import asl.tcpproxy.AppConfig;
+
+public class ConfigReloadServiceTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void keysMissingFromTheFileKeepTheirValues() throws Exception {
+		StandardEnvironment environment = new StandardEnvironment();
+		Map<String, Object> startup = new HashMap<>();
+		startup.put("connectTimeout", "10000");
+		startup.put("clientWhiteList[0]", "10.0.0.0/8");
+		startup.put("tunnels[0]", "7000:localhost:7001");
+		environment.getPropertySources().addFirst(new MapPropertySource("startup", startup));
+		AppConfig config = Binder.get(environment)
+				.bind("", Bindable.ofInstance(new AppConfig(Optional.empty())))
+				.get();
+
+		File file = folder.newFile("tunnels.yml");
+		Files.write(file.toPath(), Arrays.asList("tunnels:", "  - 8000:localhost:8001"), StandardCharsets.UTF_8);
+		TunnelsService tunnelsService = mock(TunnelsService.class);
+		ConfigReloadService service = new ConfigReloadService(config, tunnelsService, environment);
+		service.configFile = file.toPath();
+
+		service.reload();
+
+		verify(tunnelsService).reload();
+		assertEquals(Arrays.asList("8000:localhost:8001"), config.getTunnels());
+		assertEquals(10000, config.getConnectTimeout());
+		assertEquals(Arrays.asList("10.0.0.0/8"), config.getClientWhiteList());
+	}
+}
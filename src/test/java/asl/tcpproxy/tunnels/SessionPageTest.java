@@ -0,0 +1,117 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one
+ *  or more contributor license agreements.  See the NOTICE file
+ *  distributed with this work for additional information
+ *  regarding copyright ownership.  The ASF licenses this file
+ *  to you under the Apache License, Version 2.0 (the
+ *  "License"); you may not use this file except in compliance
+ *  with the License.  You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an
+ *  "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ *  KIND, either express or implied.  See the License for the
+ *  specific language governing permissions and limitations
+ *  under the License.
+ *
+ */
+package asl.tcpproxy.tunnels;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SessionPageTest {
+
+    @Test
+    public void lowestIdsAfterTheCursorInOrder() {
+        SessionPage page = new SessionPage(3, 3);
+        for (long id : new long[] { 9, 2, 7, 4, 3, 8, 5 }) {
+            page.add(session(id));
+        }
+
+        assertEquals(ids(4, 5, 7), idsOf(page.toList()));
+    }
+
+    @Test
+    public void wantsTracksTheHighestIdOnAFullPage() {
+        SessionPage page = new SessionPage(0, 2);
+
+        assertFalse(page.wants(0));
+        assertTrue(page.wants(10));
+        page.add(session(10));
+        page.add(session(20));
+
+        assertFalse(page.wants(20));
+        assertFalse(page.wants(30));
+        assertTrue(page.wants(15));
+    }
+
+    @Test
+    public void zeroLimitIsAnEmptyPage() {
+        SessionPage page = new SessionPage(0, 0);
+        page.add(session(1));
+
+        assertFalse(page.wants(1));
+        assertTrue(page.toList().isEmpty());
+    }
+
+    @Test
+    public void pagesCoverAShuffledScanOnce() {
+        List<Long> all = new ArrayList<>();
+        for (long id = 1; id <= 1000; id++) {
+            all.add(id);
+        }
+        Collections.shuffle(all, new Random(42));
+
+        List<Long> seen = new ArrayList<>();
+        long after = 0;
+        while (true) {
+            SessionPage page = new SessionPage(after, 64);
+            for (long id : all) {
+                if (page.wants(id)) {
+                    page.add(session(id));
+                }
+            }
+            List<SessionInfo> sessions = page.toList();
+            if (sessions.isEmpty()) {
+                break;
+            }
+            seen.addAll(idsOf(sessions));
+            after = sessions.get(sessions.size() - 1).getId();
+        }
+
+        List<Long> sorted = new ArrayList<>(all);
+        Collections.sort(sorted);
+        assertEquals(sorted, seen);
+    }
+
+    private static SessionInfo session(long id) {
+        return new SessionInfo(id, "client-" + id, null, 0, 0, 0, 0);
+    }
+
+    private static List<Long> ids(long... ids) {
+        List<Long> list = new ArrayList<>();
+        for (long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+
+    private static List<Long> idsOf(List<SessionInfo> sessions) {
+        List<Long> ids = new ArrayList<>();
+        for (SessionInfo session : sessions) {
+            ids.add(session.getId());
+        }
+        return ids;
+    }
+}